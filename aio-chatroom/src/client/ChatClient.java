@@ -1,5 +1,8 @@
 package client;
 
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -16,8 +19,6 @@ public class ChatClient {
     private static final int DEFAULT_PORT = 8888;
     private int port;
 
-    private static final int BUFFER_SIZE = 1024;
-
     private static final String QUIT = "\\quit";
     private Charset charset = Charset.forName("UTF-8");
 
@@ -57,9 +58,14 @@ public class ChatClient {
             // 处理用户输入
             new Thread(new UserInputHandler(this)).start();
 
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            // 一次读取可能包含多个帧，也可能只有半个帧
+            FrameDecoder decoder = new FrameDecoder();
+            FrameDecoder.FrameHandler printer = frame -> {
+                System.out.println(FrameCodec.display(frame, charset));
+                return true;
+            };
             while (true) {
-                Future<Integer> readResult = clientChannel.read(buffer);
+                Future<Integer> readResult = clientChannel.read(decoder.writableBuffer());
                 int result = readResult.get();
 
                 if (result <= 0) {
@@ -69,10 +75,7 @@ public class ChatClient {
                     System.exit(1);
 
                 } else {
-                    buffer.flip();
-                    String msg = String.valueOf(charset.decode(buffer));
-                    buffer.clear();
-                    System.out.println(msg);
+                    decoder.decode(printer);
                 }
             }
 
@@ -86,10 +89,12 @@ public class ChatClient {
             return;
         }
 
-        ByteBuffer buffer = charset.encode(msg);
-        Future<Integer> writeResult = clientChannel.write(buffer);
+        // 命令与聊天消息都编码为二进制帧，服务端按帧头分发
+        ByteBuffer buffer = ByteBuffer.wrap(FrameCodec.fromInput(msg, charset));
         try {
-            writeResult.get();
+            while (buffer.hasRemaining()) {
+                clientChannel.write(buffer).get();
+            }
         } catch (InterruptedException | ExecutionException e) {
             System.out.println("发送消息失败");
             e.printStackTrace();
@@ -0,0 +1,15 @@
+package log;
+
+/**
+ * 日志级别，低于 AsyncLogger 设置级别的日志直接丢弃
+ */
+public enum Level {
+    /** 调试信息 */
+    DEBUG,
+    /** 上线、下线、进入房间等事件，以及聊天消息 */
+    INFO,
+    /** 发送失败、非法数据等异常情况 */
+    WARN,
+    /** 关闭所有日志 */
+    OFF
+}
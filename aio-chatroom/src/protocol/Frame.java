@@ -0,0 +1,101 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 解码后的一帧
+ * 帧格式见 FrameCodec，payload 不含帧头
+ * payload 可能是解码器读缓冲区的视图（不复制数据），此时只在 FrameHandler 的回调中有效
+ */
+public final class Frame {
+
+    private final byte type;
+    private final short flags;
+    private final int senderId;
+    private final int roomId;
+    /** position 到 limit 之间为 payload，不能修改其 position / limit */
+    private final ByteBuffer payload;
+
+    public Frame(byte type, short flags, int senderId, int roomId, ByteBuffer payload) {
+        this.type = type;
+        this.flags = flags;
+        this.senderId = senderId;
+        this.roomId = roomId;
+        this.payload = payload;
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public short flags() {
+        return flags;
+    }
+
+    public int senderId() {
+        return senderId;
+    }
+
+    public int roomId() {
+        return roomId;
+    }
+
+    public int payloadLength() {
+        return payload.remaining();
+    }
+
+    public boolean isLabeled() {
+        return (flags & FrameCodec.FLAG_LABELED) != 0;
+    }
+
+    /**
+     * 标签的字节数，没有标签时为 0
+     */
+    public int labelLength() {
+        return isLabeled() ? payload.get(payload.position()) & 0xFF : 0;
+    }
+
+    /**
+     * 正文在 payload 中的起始位置
+     */
+    private int textOffset() {
+        return isLabeled() ? 1 + labelLength() : 0;
+    }
+
+    /**
+     * 正文的字节数
+     */
+    public int textLength() {
+        return payload.remaining() - textOffset();
+    }
+
+    /**
+     * 正文的只读视图，转发时直接复制字节，不经过字符串
+     */
+    public ByteBuffer text() {
+        ByteBuffer text = payload.asReadOnlyBuffer();
+        text.position(payload.position() + textOffset());
+        return text;
+    }
+
+    /**
+     * 解码标签（发送者或接收者的名称），没有标签时返回 null
+     */
+    public String label(Charset charset) {
+        if (!isLabeled()) {
+            return null;
+        }
+        ByteBuffer label = payload.duplicate();
+        label.position(payload.position() + 1);
+        label.limit(label.position() + labelLength());
+        return charset.decode(label).toString();
+    }
+
+    /**
+     * 解码正文，只在需要显示或处理文本时调用
+     */
+    public String text(Charset charset) {
+        return charset.decode(text()).toString();
+    }
+}
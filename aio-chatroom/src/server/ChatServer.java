@@ -1,10 +1,16 @@
 package server;
 
+import log.AsyncLogger;
+import pool.BufferPool;
+import pool.PooledBuffer;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
@@ -12,8 +18,11 @@ import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
 
@@ -21,28 +30,64 @@ public class ChatServer {
     private static final int DEFAULT_PORT = 8888;
     private int port;
 
-    private static final int BUFFER_SIZE = 1024;
-    private static final int THREADPOOL_SIZE = 8;
-
-    private static final String QUIT = "\\quit";
+    /** 默认每个客户端待发送字节数上限，超过时丢弃最早的未发送消息 */
+    private static final int DEFAULT_MAX_PENDING_BYTES = 256 * 1024;
+    private int maxPendingBytes;
+    /** 异步日志，回调线程只把日志放入环形缓冲区，不直接写控制台 */
+    private AsyncLogger logger;
+    /** 默认线程数：与 CPU 核数一致 */
+    private static final int DEFAULT_THREADPOOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    /** ChannelGroup 的创建方式 */
+    private GroupType groupType;
+    /** FIXED / EXECUTOR 模式下的线程数，CACHED 模式下的初始线程数 */
+    private int threadPoolSize;
+
+    /** 默认房间，新上线的客户端都在该房间中，编号为 0 */
+    private static final String DEFAULT_ROOM = "lobby";
+    /** 昵称最大长度 */
+    private static final int MAX_NICKNAME_LENGTH = 20;
     private Charset charset = Charset.forName("UTF-8");
+    /** 读缓冲区与广播消息使用的直接内存 Buffer 池 */
+    private BufferPool bufferPool = BufferPool.defaultPool();
 
     private AsynchronousChannelGroup channelGroup;
     private AsynchronousServerSocketChannel serverChannel;
 
     private List<ClientHandler> connectedClients;
+    /** 房间 -> 成员，转发时只遍历发送者所在房间的成员 */
+    private RoomIndex<ClientHandler> rooms;
+    /** 昵称 -> 客户端，私信时直接定位接收者，不遍历在线列表 */
+    private ConcurrentHashMap<String, ClientHandler> nicknames;
+    /** 房间名 -> 房间编号，填写在转发帧的 roomId 中 */
+    private ConcurrentHashMap<String, Integer> roomIds = new ConcurrentHashMap<>();
+    private AtomicInteger nextRoomId = new AtomicInteger();
 
     public ChatServer() {
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
-        this.port = port;
-        this.connectedClients = new ArrayList<>();
+        this(port, GroupType.FIXED, DEFAULT_THREADPOOL_SIZE);
+    }
+
+    public ChatServer(int port, GroupType groupType, int threadPoolSize) {
+        this(port, groupType, threadPoolSize, DEFAULT_MAX_PENDING_BYTES);
     }
 
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    public ChatServer(int port, GroupType groupType, int threadPoolSize, int maxPendingBytes) {
+        this(port, groupType, threadPoolSize, maxPendingBytes, new AsyncLogger());
+    }
+
+    public ChatServer(int port, GroupType groupType, int threadPoolSize, int maxPendingBytes, AsyncLogger logger) {
+        this.port = port;
+        this.groupType = groupType;
+        this.threadPoolSize = threadPoolSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.logger = logger;
+        this.connectedClients = new ArrayList<>();
+        this.rooms = new RoomIndex<>();
+        this.nicknames = new ConcurrentHashMap<>();
     }
 
     private void close(Closeable closeable) {
@@ -56,31 +101,68 @@ public class ChatServer {
     }
 
     /**
-     * 服务端主逻辑
+     * 服务端主逻辑：启动后一直运行，直到 ChannelGroup 被关闭（例如进程收到退出信号）
      */
     private void start() {
         try {
-            // 创建线程池
-            ExecutorService executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
-            // 创建自定义线程池的ChannelGroup
-            channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
-            // 创建自定义ChannelGroup的异步服务端Channel
-            serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
-
-            serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
-            System.out.println("启动服务器，监听端口: " + port + "...");
-
-            while (true) {
-                serverChannel.accept(null, new AcceptHandler());
-                System.in.read();
-            }
+            bind();
+            // 进程退出时关闭 ChannelGroup，释放所有连接
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+            // 主线程只需等待 ChannelGroup 终止，不再依赖标准输入
+            channelGroup.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             close(serverChannel);
         }
     }
 
+    /**
+     * 创建 ChannelGroup，绑定监听端口并开始接受连接，不阻塞调用线程
+     * @throws IOException
+     */
+    public void bind() throws IOException {
+        // 创建自定义线程池的ChannelGroup
+        channelGroup = createChannelGroup();
+        // 创建自定义ChannelGroup的异步服务端Channel
+        serverChannel = AsynchronousServerSocketChannel.open(channelGroup);
+
+        serverChannel.bind(new InetSocketAddress(LOCALHOST, port));
+        System.out.println("启动服务器，监听端口: " + port + "（" + groupType + "，" + threadPoolSize + " 线程）...");
+
+        // 只需发起一次accept，之后由AcceptHandler在回调中继续发起
+        serverChannel.accept(null, new AcceptHandler());
+    }
+
+    private AsynchronousChannelGroup createChannelGroup() throws IOException {
+        switch (groupType) {
+            case FIXED:
+                return AsynchronousChannelGroup.withFixedThreadPool(threadPoolSize, Executors.defaultThreadFactory());
+            case CACHED:
+                return AsynchronousChannelGroup.withCachedThreadPool(Executors.newCachedThreadPool(), threadPoolSize);
+            default:
+                ExecutorService executorService = Executors.newFixedThreadPool(threadPoolSize);
+                return AsynchronousChannelGroup.withThreadPool(executorService);
+        }
+    }
+
+    /**
+     * 关闭服务器及所有客户端连接
+     */
+    public void shutdown() {
+        close(serverChannel);
+        if (channelGroup != null && !channelGroup.isShutdown()) {
+            try {
+                channelGroup.shutdownNow();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        logger.close();
+    }
+
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
         @Override
         public void completed(AsynchronousSocketChannel clientChannel, Object attachment) {
@@ -95,85 +177,276 @@ public class ChatServer {
                 // 添加用户至在线列表
                 addClient(handler);
 
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                ByteBuffer buffer = handler.decoder.writableBuffer();
                 clientChannel.read(buffer, buffer, handler);
             }
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("连接失败: " + exc);
+            logger.warn("连接失败: " + exc);
         }
     }
 
     private synchronized void addClient(ClientHandler handler) {
         connectedClients.add(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已连接");
+        rooms.join(handler.room, handler);
+        logger.info(handler.clientName + "已连接");
     }
 
     private synchronized void removeClient(ClientHandler handler) {
-        connectedClients.remove(handler);
-        System.out.println(getClientName(handler.clientChannel) + "已断开");
+        // 读失败与写失败都可能触发移除，只处理一次
+        if (!connectedClients.remove(handler)) {
+            return;
+        }
+        logger.info(handler.clientName + "已断开");
+        rooms.leave(handler.room, handler);
+        if (handler.nickname != null) {
+            nicknames.remove(handler.nickname, handler);
+        }
+        handler.outbound.close();
         close(handler.clientChannel);
+        handler.releaseDecoder();
     }
 
-    private class ClientHandler implements CompletionHandler<Integer, Object> {
+    private class ClientHandler implements CompletionHandler<Integer, Object>, FrameDecoder.FrameHandler {
 
         AsynchronousSocketChannel clientChannel;
+        /** 连接时记录的客户端名称，channel 关闭后无法再获取远端地址 */
+        String clientName;
+        /** 客户端端口号，作为转发帧中的 senderId */
+        int id;
+        /** 该客户端独享的读缓冲区及分帧状态，断开时归还 */
+        FrameDecoder decoder;
+        /** 发送队列，保证同一时刻只有一个写 */
+        OutboundQueue outbound;
+        /** 当前所在的房间及其编号，只在该客户端的读回调中修改 */
+        volatile String room = DEFAULT_ROOM;
+        volatile int roomId = 0;
+        /** 昵称，没有设置时为 null，只在该客户端的读回调中修改 */
+        volatile String nickname;
+        /** 显示名称编码后的字节，作为转发帧的标签，只在名称变化时编码一次 */
+        volatile byte[] nameBytes;
 
         public ClientHandler (AsynchronousSocketChannel channel) {
             this.clientChannel = channel;
+            this.clientName = getClientName(channel);
+            this.id = getClientPort(channel);
+            this.nameBytes = clientName.getBytes(charset);
+            this.decoder = new FrameDecoder(FrameCodec.MAX_PAYLOAD_LENGTH, bufferPool);
+            // 写失败时只关闭 channel，未完成的读随之失败，由读的回调将客户端移出在线列表
+            this.outbound = new OutboundQueue(channel, maxPendingBytes, () -> close(channel));
+        }
+
+        /**
+         * 显示名称：设置了昵称时使用昵称，否则使用端口号
+         */
+        String name() {
+            String nick = nickname;
+            return nick != null ? nick : clientName;
         }
+
+        synchronized void releaseDecoder() {
+            if (decoder != null) {
+                decoder.release();
+                decoder = null;
+            }
+        }
+
         @Override
         public void completed(Integer result, Object attachment) {
-            ByteBuffer buffer = (ByteBuffer) attachment;
-            if (buffer != null) {   // 说明此时需要处理的是读
+            // 写由 OutboundQueue 处理，这里只会收到读的回调
+            if (attachment instanceof ByteBuffer) {
                 if (result <= 0) {
                     // 客户端异常，移出在线列表
                     removeClient(this);
                 } else {
-                    // 获取并打印客户端发送来的信息
-                    buffer.flip();
-                    String fwdMsg = receive(buffer);
-
-                    // 用户准备退出
-                    if (readyToQuit(fwdMsg)) {
+                    // 依次处理本次读到的完整帧，半个帧留在缓冲区中等待下一次读
+                    try {
+                        if (!decoder.decode(this)) {
+                            return;
+                        }
+                    } catch (IOException e) {
+                        logger.warn(clientName + "发送了非法的帧：" + e.getMessage());
                         removeClient(this);
                         return;
                     }
 
-                    System.out.println(getClientName(clientChannel) + ": " + fwdMsg);
-
-                    // 给其他客户端发送消息
-                    forwardMessage(clientChannel, fwdMsg);
-                    buffer.clear();
-
-                    // 持续监听该客户端channel的输入
-                    clientChannel.read(buffer, buffer, this);
+                    // 持续监听该客户端channel的输入，缓冲区可能已扩容，需要重新获取
+                    ByteBuffer next = decoder.writableBuffer();
+                    clientChannel.read(next, next, this);
                 }
             }
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
-            System.out.println("读写失败：" + exc);
+            logger.warn(clientName + "读取失败：" + exc);
+            removeClient(this);
+        }
+
+        /**
+         * 按帧头中的类型分发；聊天消息的正文直接从读缓冲区复制到转发帧中，只有打印日志时才解码
+         * @return false：客户端已退出，停止解码
+         */
+        @Override
+        public boolean onFrame(Frame frame) {
+            if (FrameCodec.isOversized(frame)) {
+                // 换上发送者的标签后超过帧长度上限，接收者无法解码
+                reply(this, "消息过长，最多 " + FrameCodec.MAX_TEXT_LENGTH + " 字节，未发送");
+                return true;
+            }
+            switch (frame.type()) {
+                case FrameCodec.TYPE_QUIT: // 用户准备退出
+                    removeClient(this);
+                    return false;
+                case FrameCodec.TYPE_JOIN: // 加入房间
+                    changeRoom(this, frame.text(charset));
+                    break;
+                case FrameCodec.TYPE_LEAVE: // 回到默认房间
+                    changeRoom(this, DEFAULT_ROOM);
+                    break;
+                case FrameCodec.TYPE_NICK: // 设置昵称
+                    changeNickname(this, frame.text(charset));
+                    break;
+                case FrameCodec.TYPE_PRIVATE: // 私信只发给指定用户
+                    if (frame.isLabeled()) {
+                        forwardPrivate(this, frame);
+                    }
+                    break;
+                case FrameCodec.TYPE_MESSAGE:
+                    if (logger.sampleMessage()) {
+                        // 只有需要记录正文时才解码
+                        logger.message(name(), logger.logBodies() ? frame.text(charset) : null, frame.textLength());
+                    }
+
+                    // 给同一房间的其他客户端发送消息
+                    forwardMessage(this, frame);
+                    break;
+                default:
+                    // 忽略不认识的帧类型，便于以后扩展协议
+                    break;
+            }
+            return true;
         }
     }
 
-    private synchronized void forwardMessage(AsynchronousSocketChannel clientChannel, String fwdMsg) {
-        for (ClientHandler handler : connectedClients) {
-            if (!clientChannel.equals(handler.clientChannel)) {
-                try {
-                    ByteBuffer buffer = charset.encode(getClientName(clientChannel) + ": " + fwdMsg);
-                    handler.clientChannel.write(buffer, null, handler);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    /**
+     * 将客户端移到另一个房间，并回复一条提示
+     */
+    private void changeRoom(ClientHandler handler, String target) {
+        if (target.isEmpty()) {
+            reply(handler, "房间名不能为空");
+            return;
+        }
+        String from = handler.room;
+        if (!from.equals(target)) {
+            rooms.join(target, handler);
+            handler.roomId = roomId(target);
+            handler.room = target;
+            rooms.leave(from, handler);
+            logger.info(handler.clientName + "进入房间：" + target);
+        }
+        reply(handler, "已进入房间：" + target);
+    }
+
+    /**
+     * 设置昵称，昵称不合法或已被其他客户端占用时回复失败提示
+     */
+    private void changeNickname(ClientHandler handler, String newName) {
+        boolean valid = !newName.isEmpty() && newName.length() <= MAX_NICKNAME_LENGTH
+                && !newName.contains(" ");
+        // putIfAbsent 是原子的，两个客户端同时抢同一个昵称时只有一个成功
+        ClientHandler owner = valid ? nicknames.putIfAbsent(newName, handler) : null;
+        if (!valid || (owner != null && owner != handler)) {
+            reply(handler, "昵称不可用：" + newName);
+            return;
+        }
+        String oldName = handler.nickname;
+        handler.nameBytes = newName.getBytes(charset);
+        handler.nickname = newName;
+        if (oldName != null && !oldName.equals(newName)) {
+            nicknames.remove(oldName, handler);
+        }
+        logger.info(handler.clientName + "设置昵称：" + newName);
+        reply(handler, "昵称已设置为：" + newName);
+    }
+
+    /**
+     * 私信只放入指定客户端的发送队列，不经过房间内的转发
+     * @param frame 标签为接收者的昵称，转发时换成发送者的名称
+     */
+    private void forwardPrivate(ClientHandler sender, Frame frame) {
+        String target = frame.label(charset);
+        ClientHandler receiver = nicknames.get(target);
+        if (receiver == null) {
+            reply(sender, "用户不在线：" + target);
+            return;
+        }
+        PooledBuffer relay = encodeRelay(FrameCodec.TYPE_PRIVATE, sender, frame);
+        receiver.outbound.enqueue(relay.buffer(), relay);
+    }
+
+    /**
+     * 向单个客户端发送一条提示
+     */
+    private void reply(ClientHandler handler, String text) {
+        PooledBuffer frame = encodeNotice(text);
+        handler.outbound.enqueue(frame.buffer(), frame);
+    }
+
+    private void forwardMessage(ClientHandler sender, Frame message) {
+        // 消息只编码一次，每个接收者使用各自的只读视图，底层数据不复制
+        PooledBuffer frame = encodeRelay(FrameCodec.TYPE_MESSAGE, sender, message);
+        for (ClientHandler handler : rooms.members(sender.room)) {
+            if (handler != sender) {
+                // 每个接收者的发送队列持有一个引用，发送完成或被丢弃时释放
+                handler.outbound.enqueue(frame.buffer().asReadOnlyBuffer(), frame.retain());
             }
         }
+        frame.release();
     }
 
-    private String getClientName(AsynchronousSocketChannel clientChannel) {
+    /**
+     * 编码转发帧：标签换成发送者的名称，正文从 frame 中按字节复制，不经过字符串
+     * @return 从池中申请的直接内存 Buffer，处于读模式
+     */
+    private PooledBuffer encodeRelay(byte type, ClientHandler sender, Frame frame) {
+        byte[] label = sender.nameBytes;
+        int length = FrameCodec.labeledLength(label, frame.textLength());
+        PooledBuffer pooled = bufferPool.acquire(FrameCodec.HEADER_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        FrameCodec.writeHeader(buffer, type, FrameCodec.FLAG_LABELED, sender.id, sender.roomId, length);
+        buffer.put((byte) label.length).put(label).put(frame.text());
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码一条系统提示
+     * @return 从池中申请的直接内存 Buffer，处于读模式
+     */
+    private PooledBuffer encodeNotice(String text) {
+        byte[] payload = text.getBytes(charset);
+        PooledBuffer pooled = bufferPool.acquire(FrameCodec.HEADER_LENGTH + payload.length);
+        ByteBuffer buffer = pooled.buffer();
+        FrameCodec.writeHeader(buffer, FrameCodec.TYPE_NOTICE, (short) 0, 0, 0, payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 房间编号，第一次使用某个房间名时分配
+     */
+    private int roomId(String room) {
+        if (DEFAULT_ROOM.equals(room)) {
+            return 0;
+        }
+        return roomIds.computeIfAbsent(room, name -> nextRoomId.incrementAndGet());
+    }
+
+    private int getClientPort(AsynchronousSocketChannel clientChannel) {
         int clientPort = -1;
         try {
             InetSocketAddress address = (InetSocketAddress) clientChannel.getRemoteAddress();
@@ -181,17 +454,20 @@ public class ChatServer {
         } catch (IOException e) {
             e.printStackTrace();
         }
-
-        return "客户端[" + clientPort + "]";
+        return clientPort;
     }
 
-    private String receive(ByteBuffer buffer) {
-        CharBuffer charBuffer = charset.decode(buffer);
-        return String.valueOf(charBuffer);
+    private String getClientName(AsynchronousSocketChannel clientChannel) {
+        return "客户端[" + getClientPort(clientChannel) + "]";
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // 可选参数：ChannelGroup 类型（FIXED / CACHED / EXECUTOR）与线程数
+        GroupType groupType = args.length > 0 ? GroupType.valueOf(args[0]) : GroupType.FIXED;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_THREADPOOL_SIZE;
+        // 可选参数3：日志配置，例如 "level=INFO,sample=100,body=false"，quiet 表示不记录聊天消息
+        AsyncLogger logger = args.length > 2 ? AsyncLogger.fromSpec(args[2]) : new AsyncLogger();
+        ChatServer chatServer = new ChatServer(DEFAULT_PORT, groupType, threads, DEFAULT_MAX_PENDING_BYTES, logger);
         chatServer.start();
     }
 }
\ No newline at end of file
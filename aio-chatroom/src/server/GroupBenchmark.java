@@ -0,0 +1,118 @@
+package server;
+
+import protocol.FrameCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 比较不同 ChannelGroup 配置下服务器的转发吞吐量
+ * 1 个发送者 + N 个接收者：发送者每发一条消息，等所有接收者都收到后再发下一条，
+ * 统计每秒完成的广播轮数及每秒送达的消息数
+ *
+ * 用法：java server.GroupBenchmark [接收者数量] [轮数]
+ */
+public class GroupBenchmark {
+
+    private static final int PORT = 9888;
+    private static final String MESSAGE = "benchmark";
+    /** 原来的配置：withThreadPool(Executors.newFixedThreadPool(8)) */
+    private static final int LEGACY_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("接收者：" + receivers + "，轮数：" + rounds + "，CPU 核数：" + cores);
+        run(GroupType.EXECUTOR, LEGACY_THREADS, receivers, rounds);
+        run(GroupType.FIXED, cores, receivers, rounds);
+        run(GroupType.CACHED, cores, receivers, rounds);
+    }
+
+    private static void run(GroupType groupType, int threads, int receiverCount, int rounds)
+            throws IOException, InterruptedException {
+        // 服务器会打印每条消息，测试期间屏蔽标准输出，避免测到的是控制台的速度
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        ChatServer server = new ChatServer(PORT, groupType, threads);
+        String result = groupType + " 测试失败";
+        SocketChannel sender = null;
+        SocketChannel[] receivers = new SocketChannel[receiverCount];
+        try {
+            server.bind();
+            InetSocketAddress address = new InetSocketAddress("localhost", PORT);
+            sender = SocketChannel.open(address);
+            for (int i = 0; i < receiverCount; i++) {
+                receivers[i] = SocketChannel.open(address);
+            }
+            // 等待服务器将所有连接加入在线列表
+            Thread.sleep(500);
+
+            // 接收者收到的帧：帧头 + 发送者名称标签 + 原始正文
+            int senderPort = ((InetSocketAddress) sender.getLocalAddress()).getPort();
+            byte[] label = ("客户端[" + senderPort + "]").getBytes(StandardCharsets.UTF_8);
+            byte[] text = MESSAGE.getBytes(StandardCharsets.UTF_8);
+            int frameLength = FrameCodec.HEADER_LENGTH + FrameCodec.labeledLength(label, text.length);
+            ByteBuffer message = ByteBuffer.wrap(FrameCodec.encodeText(
+                    FrameCodec.TYPE_MESSAGE, 0, 0, MESSAGE, StandardCharsets.UTF_8));
+            ByteBuffer frame = ByteBuffer.allocate(frameLength);
+
+            // 预热
+            broadcast(sender, receivers, message, frame, rounds / 10);
+
+            long start = System.nanoTime();
+            broadcast(sender, receivers, message, frame, rounds);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            result = String.format("%-8s %2d 线程: %10.0f 轮/秒, %12.0f 条/秒",
+                    groupType, threads, rounds / seconds, rounds * (double) receiverCount / seconds);
+        } finally {
+            if (sender != null) {
+                sender.close();
+            }
+            for (SocketChannel receiver : receivers) {
+                if (receiver != null) {
+                    receiver.close();
+                }
+            }
+            server.shutdown();
+            // 等待端口释放
+            Thread.sleep(500);
+            System.setOut(stdout);
+            System.out.println(result);
+        }
+    }
+
+    private static void broadcast(SocketChannel sender, SocketChannel[] receivers,
+                                  ByteBuffer message, ByteBuffer frame, int rounds) throws IOException {
+        for (int round = 0; round < rounds; round++) {
+            message.rewind();
+            while (message.hasRemaining()) {
+                sender.write(message);
+            }
+            for (SocketChannel receiver : receivers) {
+                frame.clear();
+                while (frame.hasRemaining()) {
+                    if (receiver.read(frame) < 0) {
+                        throw new IOException("服务器关闭了连接");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package server;
+
+/**
+ * AsynchronousChannelGroup 的创建方式
+ */
+public enum GroupType {
+
+    /**
+     * AsynchronousChannelGroup.withFixedThreadPool()
+     * 固定数量的线程既等待 IO 事件又直接执行 CompletionHandler，没有线程间的转交；
+     * CompletionHandler 中不能有长时间阻塞的操作，否则会拖住 IO 事件的处理
+     */
+    FIXED,
+
+    /**
+     * AsynchronousChannelGroup.withCachedThreadPool()
+     * 内部线程等待 IO 事件，再把 CompletionHandler 转交给可按需扩容的线程池执行
+     */
+    CACHED,
+
+    /**
+     * AsynchronousChannelGroup.withThreadPool(Executors.newFixedThreadPool())，即原来的方式
+     * 与 CACHED 一样需要转交，但线程数固定
+     */
+    EXECUTOR
+}
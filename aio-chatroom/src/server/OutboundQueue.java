@@ -0,0 +1,185 @@
+package server;
+
+import pool.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个客户端的发送队列
+ *
+ * 1. AsynchronousSocketChannel 同一时刻只允许一个未完成的写，否则抛出 WritePendingException，
+ *    因此所有待发送的消息先入队，由写完成的回调串行地发起下一次写
+ * 2. 每次写将队列中已有的多条消息合并为一次 gathering write，部分写入时继续写剩余部分
+ * 3. 待发送字节数超过上限时丢弃最早的、尚未开始发送的消息，正在写的消息不受影响
+ */
+class OutboundQueue implements CompletionHandler<Long, Void> {
+
+    /** 一次 gathering write 最多合并的消息数 */
+    private static final int MAX_GATHER = 64;
+
+    private final AsynchronousSocketChannel channel;
+    /** 写失败时的回调，通常是将客户端移出在线列表 */
+    private final Runnable onFailure;
+    /** 待发送字节数上限 */
+    private final int maxPendingBytes;
+
+    /** 等待发送的消息 */
+    private final Deque<Pending> waiting = new ArrayDeque<>();
+    /** 正在写的一批消息，写完成之前不能修改 */
+    private final ByteBuffer[] inFlight = new ByteBuffer[MAX_GATHER];
+    private final PooledBuffer[] inFlightOwners = new PooledBuffer[MAX_GATHER];
+    private int inFlightCount = 0;
+    /** inFlight 中第一个尚未写完的下标 */
+    private int inFlightOffset = 0;
+
+    /** waiting 与 inFlight 中尚未发送的字节数 */
+    private long queuedBytes = 0;
+    private long dropped = 0;
+    private boolean writing = false;
+    private boolean closed = false;
+
+    OutboundQueue(AsynchronousSocketChannel channel, int maxPendingBytes, Runnable onFailure) {
+        this.channel = channel;
+        this.maxPendingBytes = maxPendingBytes;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * 将一条消息加入发送队列，必要时发起写
+     * @param data 待发送的数据（各接收者独立的视图）
+     * @param owner data 所属的 PooledBuffer，调用者已为本次发送 retain()，发送完成或被丢弃时 release()
+     */
+    void enqueue(ByteBuffer data, PooledBuffer owner) {
+        synchronized (this) {
+            if (closed) {
+                owner.release();
+                return;
+            }
+            waiting.addLast(new Pending(data, owner));
+            queuedBytes += data.remaining();
+            while (queuedBytes > maxPendingBytes && !waiting.isEmpty()) {
+                Pending oldest = waiting.pollFirst();
+                queuedBytes -= oldest.data.remaining();
+                oldest.owner.release();
+                dropped++;
+            }
+            if (writing || !fillBatch()) {
+                return;
+            }
+            writing = true;
+        }
+        write();
+    }
+
+    /**
+     * 将 waiting 中的消息移入 inFlight，只在没有进行中的写时调用
+     * @return true：有数据需要写
+     */
+    private boolean fillBatch() {
+        inFlightCount = 0;
+        inFlightOffset = 0;
+        while (inFlightCount < MAX_GATHER && !waiting.isEmpty()) {
+            Pending pending = waiting.pollFirst();
+            inFlight[inFlightCount] = pending.data;
+            inFlightOwners[inFlightCount] = pending.owner;
+            inFlightCount++;
+        }
+        return inFlightCount > 0;
+    }
+
+    /**
+     * 发起一次写，调用时不持有锁：写可能在当前线程中直接完成并回调 completed()
+     */
+    private void write() {
+        try {
+            channel.write(inFlight, inFlightOffset, inFlightCount - inFlightOffset,
+                    0L, TimeUnit.MILLISECONDS, null, this);
+        } catch (RuntimeException e) {
+            // channel 已关闭等情况
+            failed(e, null);
+        }
+    }
+
+    @Override
+    public void completed(Long result, Void attachment) {
+        synchronized (this) {
+            queuedBytes -= result;
+            // 释放已经完整写出的消息
+            while (inFlightOffset < inFlightCount && !inFlight[inFlightOffset].hasRemaining()) {
+                releaseInFlight(inFlightOffset);
+                inFlightOffset++;
+            }
+            if (closed) {
+                releaseAllInFlight();
+                writing = false;
+                return;
+            }
+            // 部分写入时继续写剩余部分，否则开始下一批
+            if (inFlightOffset == inFlightCount && !fillBatch()) {
+                writing = false;
+                return;
+            }
+        }
+        write();
+    }
+
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        synchronized (this) {
+            releaseAllInFlight();
+            writing = false;
+        }
+        close();
+        onFailure.run();
+    }
+
+    private void releaseInFlight(int index) {
+        inFlightOwners[index].release();
+        inFlight[index] = null;
+        inFlightOwners[index] = null;
+    }
+
+    private void releaseAllInFlight() {
+        for (int i = inFlightOffset; i < inFlightCount; i++) {
+            queuedBytes -= inFlight[i].remaining();
+            releaseInFlight(i);
+        }
+        inFlightCount = 0;
+        inFlightOffset = 0;
+    }
+
+    /**
+     * 丢弃所有尚未发送的消息，进行中的写由其回调负责释放
+     */
+    synchronized void close() {
+        closed = true;
+        Pending pending;
+        while ((pending = waiting.pollFirst()) != null) {
+            queuedBytes -= pending.data.remaining();
+            pending.owner.release();
+        }
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    synchronized long droppedCount() {
+        return dropped;
+    }
+
+    private static class Pending {
+        final ByteBuffer data;
+        final PooledBuffer owner;
+
+        Pending(ByteBuffer data, PooledBuffer owner) {
+            this.data = data;
+            this.owner = owner;
+        }
+    }
+}
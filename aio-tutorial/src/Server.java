@@ -1,3 +1,6 @@
+import pool.BufferPool;
+import pool.PooledBuffer;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -20,6 +23,9 @@ public class Server {
     /** 异步的服务器 Channel */
     AsynchronousServerSocketChannel serverChannel;
 
+    /** 直接内存 Buffer 池，每个客户端连接期间复用同一个 Buffer 进行读写 */
+    BufferPool bufferPool = BufferPool.defaultPool();
+
     private void close (Closeable closeable) {
         if (closeable != null) {
             try {
@@ -81,12 +87,14 @@ public class Server {
 
             AsynchronousSocketChannel clientChannel = result;
             if (clientChannel != null && clientChannel.isOpen()) {
-                // 处理客户端通道的读写
-                ClientHandler handler = new ClientHandler(clientChannel);
+                // 从池中申请该客户端使用的 Buffer，连接断开时归还
+                PooledBuffer pooled = bufferPool.acquire(1024);
+                ByteBuffer buffer = pooled.buffer();
 
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                // 处理客户端通道的读写
+                ClientHandler handler = new ClientHandler(clientChannel, pooled);
 
-                // 定义一个 Map 作为 attachment
+                // 定义一个 Map 作为 attachment，该客户端的每次读写都复用这个 Map
                 Map<String, Object> info = new HashMap<>();
                 info.put("type", "read");
                 info.put("buffer", buffer);
@@ -108,36 +116,56 @@ public class Server {
 
         private AsynchronousSocketChannel clientChannel;
 
-        public ClientHandler(AsynchronousSocketChannel channel) {
+        /** 该客户端读写共用的 Buffer */
+        private PooledBuffer pooled;
+
+        public ClientHandler(AsynchronousSocketChannel channel, PooledBuffer pooled) {
             this.clientChannel = channel;
+            this.pooled = pooled;
         }
 
         @Override
         public void completed(Integer result, Object attachment) {
             Map<String, Object> info = (Map<String, Object>) attachment;
             String type = (String) info.get("type");
+            ByteBuffer buffer = (ByteBuffer) info.get("buffer");
 
             if ("read".equals(type)) {
-                ByteBuffer buffer = (ByteBuffer) info.get("buffer");
+                // 客户端断开连接
+                if (result < 0) {
+                    closeClient();
+                    return;
+                }
                 buffer.flip();
                 info.put("type", "write");
 
                 // 异步调用write
                 clientChannel.write(buffer, info, this);
-                buffer.clear();
 
             } else if ("write".equals(type)) {
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                info = new HashMap<>();
+                // 没写完的部分继续写
+                if (buffer.hasRemaining()) {
+                    clientChannel.write(buffer, info, this);
+                    return;
+                }
+                // 写完后复用同一个 Buffer 和 Map 进行下一次读
+                buffer.clear();
                 info.put("type", "read");
-                info.put("buffer", buffer);
                 clientChannel.read(buffer, info, this);
             }
         }
 
         @Override
         public void failed(Throwable exc, Object attachment) {
+            closeClient();
+        }
 
+        private void closeClient() {
+            close(clientChannel);
+            if (pooled != null) {
+                pooled.release();
+                pooled = null;
+            }
         }
     }
 
@@ -0,0 +1,201 @@
+package pool;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可复用的直接内存 Buffer 池
+ *
+ * 1. 按容量分为若干档（size class），申请时向上取整到最近的一档，超过最大一档的申请不做池化
+ * 2. 每个线程有自己的小缓存，命中时无需任何同步；线程缓存满了再归还到全局队列
+ * 3. 泄漏检测：按采样间隔记录申请位置，如果 PooledBuffer 在 release() 之前就被 GC 回收，
+ *    打印申请位置并回收其底层 Buffer
+ */
+public class BufferPool {
+
+    /** 各档 Buffer 的容量 */
+    private static final int[] SIZE_CLASSES = {1024, 4 * 1024, 16 * 1024, 64 * 1024};
+    /** 每个线程每一档最多缓存的 Buffer 数量 */
+    private static final int THREAD_CACHE_SIZE = 64;
+    /** 全局队列每一档最多保留的 Buffer 数量 */
+    private static final int GLOBAL_CACHE_SIZE = 4096;
+    /** 默认每申请多少次记录一次申请位置，0 表示关闭泄漏检测 */
+    private static final int DEFAULT_LEAK_SAMPLE_INTERVAL = 128;
+
+    /** 进程内共享的默认实例 */
+    private static final BufferPool DEFAULT = new BufferPool(
+            Integer.getInteger("bufferPool.leakSampleInterval", DEFAULT_LEAK_SAMPLE_INTERVAL));
+
+    /** 全局队列，按档存放 */
+    private final Queue<ByteBuffer>[] globalCaches;
+    /** 全局队列中各档的数量（ConcurrentLinkedQueue.size() 需要遍历，单独计数） */
+    private final AtomicInteger[] globalCounts;
+    /** 线程缓存 */
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+
+    private final int leakSampleInterval;
+    private final AtomicLong acquireCount = new AtomicLong();
+    /** 被采样的、尚未释放的 Buffer，保证 LeakTracker 本身不会先于 PooledBuffer 被回收 */
+    private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+
+    /** 统计：新分配的直接内存 Buffer 数量 / 命中缓存的次数 / 未释放的数量 / 发现的泄漏数量 */
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int leakSampleInterval) {
+        this.leakSampleInterval = Math.max(0, leakSampleInterval);
+        this.globalCaches = new Queue[SIZE_CLASSES.length];
+        this.globalCounts = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            globalCaches[i] = new ConcurrentLinkedQueue<>();
+            globalCounts[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+            for (int i = 0; i < caches.length; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+    }
+
+    public static BufferPool defaultPool() {
+        return DEFAULT;
+    }
+
+    /**
+     * 申请一个容量不小于 minCapacity 的直接内存 Buffer，处于写模式，limit 等于 minCapacity
+     * 引用计数为 1，用完后必须调用 release()
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        reportLeaks();
+
+        int sizeClass = sizeClassOf(minCapacity);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = threadCaches.get()[sizeClass].pollFirst();
+            if (buffer == null) {
+                buffer = globalCaches[sizeClass].poll();
+                if (buffer != null) {
+                    globalCounts[sizeClass].decrementAndGet();
+                }
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : minCapacity);
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+        buffer.clear().limit(minCapacity);
+        outstanding.incrementAndGet();
+
+        PooledBuffer pooled = new PooledBuffer(this, buffer);
+        if (leakSampleInterval > 0 && acquireCount.incrementAndGet() % leakSampleInterval == 0) {
+            LeakTracker tracker = new LeakTracker(pooled, buffer, leakQueue);
+            trackers.add(tracker);
+            pooled.track(tracker);
+        }
+        return pooled;
+    }
+
+    /**
+     * 由 PooledBuffer 在引用计数归零时调用，将底层 Buffer 放回池中
+     */
+    void recycle(ByteBuffer buffer, LeakTracker tracker) {
+        if (tracker != null) {
+            trackers.remove(tracker);
+            tracker.clear();
+        }
+        outstanding.decrementAndGet();
+        offer(buffer);
+    }
+
+    private void offer(ByteBuffer buffer) {
+        int sizeClass = indexOf(buffer.capacity());
+        if (sizeClass < 0) {
+            // 不属于任何一档，交给 GC
+            return;
+        }
+        ArrayDeque<ByteBuffer> local = threadCaches.get()[sizeClass];
+        if (local.size() < THREAD_CACHE_SIZE) {
+            local.offerFirst(buffer);
+        } else if (globalCounts[sizeClass].incrementAndGet() <= GLOBAL_CACHE_SIZE) {
+            globalCaches[sizeClass].offer(buffer);
+        } else {
+            globalCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * 处理已经被 GC 回收、却没有 release() 的 PooledBuffer
+     */
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                leaked.incrementAndGet();
+                outstanding.decrementAndGet();
+                System.err.println("BufferPool 检测到泄漏：Buffer 在 release() 之前被回收，申请位置如下");
+                tracker.site.printStackTrace();
+                offer(tracker.buffer);
+            }
+        }
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 池中最大一档的容量，超过该值的申请不做池化
+     */
+    public static int maxPooledCapacity() {
+        return SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{allocated=" + allocated + ", reused=" + reused
+                + ", outstanding=" + outstanding + ", leaked=" + leaked + "}";
+    }
+
+    /**
+     * 记录被采样 PooledBuffer 的申请位置，并持有其底层 Buffer 以便泄漏时回收
+     */
+    static class LeakTracker extends WeakReference<PooledBuffer> {
+        private final ByteBuffer buffer;
+        private final Throwable site = new Throwable("Buffer 申请位置");
+
+        LeakTracker(PooledBuffer referent, ByteBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            this.buffer = buffer;
+        }
+    }
+}
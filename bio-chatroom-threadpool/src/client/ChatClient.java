@@ -1,9 +1,14 @@
 package client;
 
-import java.io.BufferedReader;
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 public class ChatClient {
 
@@ -16,6 +21,9 @@ public class ChatClient {
     /** 客户端退出命令 */
     private final String QUIT = "\\quit";
 
+    /** 帧中文本使用的字符集 */
+    final Charset CHARSET = StandardCharsets.UTF_8;
+
     /** 客户端 Socket */
     private Socket socket;
 
@@ -30,12 +38,12 @@ public class ChatClient {
             // 另起一个线程处理用户输入
             new Thread(new UserInputHandler(this, socket)).start();
 
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream())
             );
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                System.out.println(msg);
+            Frame frame = null;
+            while ((frame = FrameCodec.read(in)) != null) {
+                System.out.println(FrameCodec.display(frame, CHARSET));
             }
 
         } catch (IOException e) {
@@ -1,5 +1,7 @@
 package client;
 
+import protocol.FrameCodec;
+
 import java.io.*;
 import java.net.Socket;
 
@@ -14,18 +16,17 @@ public class UserInputHandler implements Runnable{
 
     @Override
     public void run() {
-        BufferedWriter writer = null;
+        OutputStream out = null;
         BufferedReader consoleReader = new BufferedReader(
                 new InputStreamReader(System.in)
         );
         try {
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
+            out = new BufferedOutputStream(socket.getOutputStream());
             String msg = null;
             while ((msg = consoleReader.readLine()) != null) {
-                writer.write(msg + "\n");
-                writer.flush();
+                // 命令与聊天消息都编码为二进制帧，服务端按帧头分发
+                out.write(FrameCodec.fromInput(msg, chatClient.CHARSET));
+                out.flush();
 
                 if (chatClient.readerToQuit(msg)) {
                     break;
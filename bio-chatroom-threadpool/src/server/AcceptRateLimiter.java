@@ -0,0 +1,43 @@
+package server;
+
+/**
+ * 令牌桶限流器：限制每秒接受的新连接数，允许一定的突发
+ * 只在 accept 线程中使用，无需同步
+ */
+class AcceptRateLimiter {
+
+    /** 每秒产生的令牌数 */
+    private final double permitsPerSecond;
+
+    /** 桶容量，即允许的最大突发连接数 */
+    private final double maxPermits;
+
+    /** 当前可用的令牌数 */
+    private double storedPermits;
+
+    /** 上次补充令牌的时间 */
+    private long lastRefillNanos;
+
+    AcceptRateLimiter(double permitsPerSecond, int maxBurst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = Math.max(1, maxBurst);
+        this.storedPermits = this.maxPermits;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return false：超过限速，应当拒绝该连接
+     */
+    boolean tryAcquire() {
+        long now = System.nanoTime();
+        storedPermits = Math.min(maxPermits,
+                storedPermits + (now - lastRefillNanos) / 1e9 * permitsPerSecond);
+        lastRefillNanos = now;
+        if (storedPermits >= 1) {
+            storedPermits -= 1;
+            return true;
+        }
+        return false;
+    }
+}
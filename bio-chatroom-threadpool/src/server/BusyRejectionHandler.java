@@ -0,0 +1,20 @@
+package server;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 线程池与等待队列都已满时的拒绝策略：告诉客户端服务器繁忙，然后断开连接
+ */
+public class BusyRejectionHandler implements RejectedExecutionHandler {
+
+    /** 发送给被拒绝客户端的消息 */
+    static final String BUSY_MESSAGE = "服务器繁忙，请稍后再试";
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        if (r instanceof ChatHandler) {
+            ((ChatHandler) r).reject(BUSY_MESSAGE);
+        }
+    }
+}
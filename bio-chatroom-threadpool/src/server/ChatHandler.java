@@ -1,5 +1,9 @@
 package server;
 
+import log.AsyncLogger;
+import protocol.Frame;
+import protocol.FrameCodec;
+
 import java.io.*;
 import java.net.Socket;
 
@@ -11,9 +15,48 @@ public class ChatHandler implements Runnable {
     /** 当前客户端 Socket */
     private Socket socket;
 
+    /** 当前客户端所在的房间及其编号，只在本线程中修改 */
+    private String room = ChatServer.DEFAULT_ROOM;
+    private int roomId = 0;
+
+    /** 当前客户端的昵称，没有设置时为 null */
+    private String nickname;
+
+    /** 显示名称编码后的字节，作为转发帧的标签，只在名称变化时编码一次 */
+    private byte[] nameBytes;
+
     public ChatHandler(ChatServer chatServer, Socket socket) {
         this.chatServer = chatServer;
         this.socket = socket;
+        this.nameBytes = name().getBytes(ChatServer.CHARSET);
+    }
+
+    /**
+     * 拒绝该客户端：发送一条提示后断开连接，在 accept 线程中调用
+     * @param msg 发送给客户端的提示
+     */
+    public void reject(String msg) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(FrameCodec.encodeText(FrameCodec.TYPE_NOTICE, 0, 0, msg, ChatServer.CHARSET));
+            out.flush();
+        } catch (IOException e) {
+            // 客户端已断开，无需处理
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        chatServer.logger().info("客户端[" + socket.getPort() + "]被拒绝：" + msg);
+    }
+
+    /**
+     * 当前客户端的显示名称：设置了昵称时使用昵称，否则使用端口号
+     */
+    private String name() {
+        return nickname != null ? nickname : "客户端[" + socket.getPort() + "]";
     }
 
     @Override
@@ -21,26 +64,86 @@ public class ChatHandler implements Runnable {
         try {
             chatServer.addClient(socket);
 
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream())
             );
 
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                if (chatServer.readyToQuit(msg)) {
+            Frame frame = null;
+            while ((frame = FrameCodec.read(in)) != null) {
+                if (frame.type() == FrameCodec.TYPE_QUIT) {
                     break;
                 }
-                System.out.println("客户端[" + socket.getPort() + "]：" + msg);
-                chatServer.forwardMessage(socket, msg);
+                handle(frame);
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             try {
-                chatServer.removeClient(socket);
+                chatServer.removeClient(socket, room, nickname);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * 按帧头中的类型分发，聊天消息的正文不需要解码
+     */
+    private void handle(Frame frame) {
+        if (FrameCodec.isOversized(frame)) {
+            // 换上发送者的标签后超过帧长度上限，接收者无法解码
+            chatServer.reply(socket, "消息过长，最多 " + FrameCodec.MAX_TEXT_LENGTH + " 字节，未发送");
+            return;
+        }
+        switch (frame.type()) {
+            case FrameCodec.TYPE_JOIN: // 加入房间
+                changeRoom(frame.text(ChatServer.CHARSET));
+                break;
+            case FrameCodec.TYPE_LEAVE: // 回到默认房间
+                changeRoom(ChatServer.DEFAULT_ROOM);
+                break;
+            case FrameCodec.TYPE_NICK: // 设置昵称
+                String newName = frame.text(ChatServer.CHARSET);
+                if (chatServer.changeNickname(socket, nickname, newName)) {
+                    nickname = newName;
+                    nameBytes = newName.getBytes(ChatServer.CHARSET);
+                    chatServer.reply(socket, "昵称已设置为：" + nickname);
+                } else {
+                    chatServer.reply(socket, "昵称不可用：" + newName);
+                }
+                break;
+            case FrameCodec.TYPE_PRIVATE: // 私信只发给指定用户，标签换成发送者的名称
+                if (frame.isLabeled()) {
+                    String target = frame.label(ChatServer.CHARSET);
+                    byte[] relay = chatServer.encodeRelay(FrameCodec.TYPE_PRIVATE, socket, roomId, nameBytes, frame);
+                    if (!chatServer.forwardPrivate(target, relay)) {
+                        chatServer.reply(socket, "用户不在线：" + target);
+                    }
+                }
+                break;
+            case FrameCodec.TYPE_MESSAGE:
+                AsyncLogger logger = chatServer.logger();
+                if (logger.sampleMessage()) {
+                    // 只有需要记录正文时才解码
+                    logger.message(name(), logger.logBodies() ? frame.text(ChatServer.CHARSET) : null, frame.textLength());
+                }
+                chatServer.forwardMessage(socket, room,
+                        chatServer.encodeRelay(FrameCodec.TYPE_MESSAGE, socket, roomId, nameBytes, frame));
+                break;
+            default:
+                // 忽略不认识的帧类型，便于以后扩展协议
+                break;
+        }
+    }
+
+    private void changeRoom(String target) {
+        if (target.isEmpty()) {
+            chatServer.reply(socket, "房间名不能为空");
+            return;
+        }
+        chatServer.changeRoom(socket, room, target);
+        room = target;
+        roomId = chatServer.roomId(target);
+        chatServer.reply(socket, "已进入房间：" + room);
+    }
 }
@@ -1,40 +1,133 @@
 package server;
 
-import java.io.BufferedWriter;
+import log.AsyncLogger;
+import protocol.Frame;
+import protocol.FrameCodec;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
 
     /** 服务器监听端口 */
     private final int SERVER_PORT = 8888;
 
-    /** 客户端退出命令 */
-    private final String QUIT = "\\quit";
+    /** 帧中文本使用的字符集 */
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** 默认房间，新上线的客户端都在该房间中，编号为 0 */
+    static final String DEFAULT_ROOM = "lobby";
+
+    /** 房间名 -> 房间编号，填写在转发帧的 roomId 中 */
+    private final ConcurrentHashMap<String, Integer> roomIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger();
+
+    /** 昵称最大长度 */
+    private final int MAX_NICKNAME_LENGTH = 20;
 
     /** 服务端 Socket */
     private ServerSocket serverSocket;
 
-    /** 线程池 */
-    private ExecutorService executorService;
+    /** 线程池，每个在线客户端占用一个线程 */
+    private ThreadPoolExecutor executorService;
+
+    /** 默认等待队列长度：线程都被占用时最多还能排队等待的连接数 */
+    private static final int DEFAULT_ACCEPT_QUEUE_SIZE = 16;
+
+    /** 默认每秒最多接受的新连接数，同时也是允许的突发连接数 */
+    private static final int DEFAULT_MAX_ACCEPTS_PER_SECOND = 100;
+
+    /** 新连接限流 */
+    private AcceptRateLimiter acceptRateLimiter;
+
+    /** 执行各客户端写任务的线程池，与读取消息的线程池分开，阻塞的写不会占用读线程 */
+    private ExecutorService senderExecutor;
+
+    /** 定时打印队列指标 */
+    private ScheduledExecutorService metricsReporter;
+
+    /** 每个连接的写缓冲区大小（字节数） */
+    private static final int IO_BUFFER_SIZE = 8192;
+
+    /** 默认每个客户端发送队列的容量（消息条数） */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** 每个客户端发送队列的容量 */
+    private int queueCapacity;
+
+    /** 发送队列已满时的处理策略 */
+    private OverflowPolicy overflowPolicy;
 
     /**
-     * 记录当前在线客户端
+     * 记录当前在线客户端，读写均无需全局锁
      * key：客户端端口号
-     * value：客户端对应的 Writer
+     * value：客户端对应的 ClientWriter
      */
-    private HashMap<Integer, Writer> connectedClient;
+    private ConcurrentHashMap<Integer, ClientWriter> connectedClient;
+
+    /** 房间 -> 成员端口号，转发时只遍历发送者所在房间的成员 */
+    private RoomIndex<Integer> rooms;
+
+    /** 昵称 -> 端口号，私信时直接定位接收者，不遍历在线列表 */
+    private ConcurrentHashMap<String, Integer> nicknames;
+
+    /** 异步日志，连接线程只把日志放入环形缓冲区，不直接写控制台 */
+    private AsyncLogger logger;
 
     public ChatServer(int threadNum) {
-        // 创建线程池
-        executorService = Executors.newFixedThreadPool(threadNum);
-        connectedClient = new HashMap<>();
+        this(threadNum, new AsyncLogger());
+    }
+
+    public ChatServer(int threadNum, AsyncLogger logger) {
+        this(threadNum, DEFAULT_ACCEPT_QUEUE_SIZE, DEFAULT_MAX_ACCEPTS_PER_SECOND,
+                new BusyRejectionHandler(), DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST, logger);
+    }
+
+    /**
+     * @param threadNum 允许的最大在线用户数
+     * @param acceptQueueSize 在线用户已满时最多排队等待的连接数，0 表示不排队
+     * @param maxAcceptsPerSecond 每秒最多接受的新连接数
+     * @param rejectionHandler 在线用户与等待队列都已满时的拒绝策略
+     * @param queueCapacity 每个客户端发送队列的容量
+     * @param overflowPolicy 发送队列已满时的处理策略
+     * @param logger 连接、消息等日志的去处
+     */
+    public ChatServer(int threadNum, int acceptQueueSize, int maxAcceptsPerSecond,
+                      RejectedExecutionHandler rejectionHandler,
+                      int queueCapacity, OverflowPolicy overflowPolicy, AsyncLogger logger) {
+        // 创建线程池：等待队列有界，排不上队的连接交给拒绝策略处理，而不是无限堆积
+        BlockingQueue<Runnable> workQueue = acceptQueueSize > 0
+                ? new ArrayBlockingQueue<>(acceptQueueSize) : new SynchronousQueue<>();
+        executorService = new ThreadPoolExecutor(threadNum, threadNum,
+                0L, TimeUnit.MILLISECONDS, workQueue, rejectionHandler);
+        acceptRateLimiter = new AcceptRateLimiter(maxAcceptsPerSecond, maxAcceptsPerSecond);
+        // 写任务只在有消息时提交，空闲客户端不占用发送线程
+        senderExecutor = Executors.newCachedThreadPool();
+        connectedClient = new ConcurrentHashMap<>();
+        rooms = new RoomIndex<>();
+        nicknames = new ConcurrentHashMap<>();
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.logger = logger;
+    }
+
+    AsyncLogger logger() {
+        return logger;
     }
 
     /**
@@ -42,54 +135,174 @@ public class ChatServer {
      * @param socket 新增客户端的socket
      * @throws IOException
      */
-    public synchronized void addClient(Socket socket) throws IOException {
+    public void addClient(Socket socket) throws IOException {
         if (socket != null) {
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
-            connectedClient.put(socket.getPort(), writer);
-            System.out.println("客户端[" + socket.getPort() + "]已连接");
+            connectedClient.put(socket.getPort(), new ClientWriter(
+                    socket, IO_BUFFER_SIZE, queueCapacity, overflowPolicy, senderExecutor, logger));
+            rooms.join(DEFAULT_ROOM, socket.getPort());
+            logger.info("客户端[" + socket.getPort() + "]已连接");
         }
     }
 
     /**
      * 移除已下线客户端
      * @param socket 已下线的客户端socket
+     * @param room 该客户端所在的房间
+     * @param nickname 该客户端的昵称，没有设置时为 null
      * @throws IOException
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
+    public void removeClient(Socket socket, String room, String nickname) throws IOException {
         if (socket != null) {
             int port = socket.getPort();
-            if (connectedClient.containsKey(port)) {
-                connectedClient.get(port).close();
-                System.out.println("客户端[" + port + "]已断开");
+            rooms.leave(room, port);
+            if (nickname != null) {
+                nicknames.remove(nickname, port);
+            }
+            ClientWriter writer = connectedClient.remove(port);
+            if (writer != null) {
+                writer.close();
+                logger.info("客户端[" + port + "]已断开");
             }
-            connectedClient.remove(port);
         }
     }
 
     /**
-     * 转发信息给其他所有在线客户端
+     * 将客户端从一个房间移到另一个房间
+     * @param socket 客户端socket
+     * @param from 原来所在的房间
+     * @param to 要加入的房间
+     */
+    public void changeRoom(Socket socket, String from, String to) {
+        int port = socket.getPort();
+        if (from.equals(to)) {
+            return;
+        }
+        rooms.join(to, port);
+        rooms.leave(from, port);
+        logger.info("客户端[" + port + "]进入房间：" + to);
+    }
+
+    /**
+     * 转发信息给同一房间的其他在线客户端
+     * 只将消息放入各客户端的发送队列，不等待写完成
      * @param socket 发送信息的客户端
-     * @param fwdMsg 该客户端发送的信息
-     * @throws IOException
+     * @param room 发送者所在的房间
+     * @param fwdMsg 编码好的转发帧，所有接收者的队列共享同一个数组
      */
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException {
+    public void forwardMessage(Socket socket, String room, byte[] fwdMsg) {
         if (socket != null) {
             int currentPort = socket.getPort();
-            String msg = "客户端[" + currentPort + "]：" + fwdMsg + "\n";
-            for (int port : connectedClient.keySet()) {
-                if (port != currentPort) {
-                    Writer writer = connectedClient.get(port);
-                    writer.write(msg);
-                    writer.flush();
+            for (Integer port : rooms.members(room)) {
+                ClientWriter writer = connectedClient.get(port);
+                if (port != currentPort && writer != null) {
+                    writer.send(fwdMsg);
                 }
             }
         }
     }
 
-    public boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    /**
+     * 设置昵称
+     * @param socket 客户端socket
+     * @param oldName 原来的昵称，没有设置时为 null
+     * @param newName 新昵称
+     * @return false：昵称不合法或已被其他客户端占用
+     */
+    public boolean changeNickname(Socket socket, String oldName, String newName) {
+        if (newName.isEmpty() || newName.length() > MAX_NICKNAME_LENGTH || newName.contains(" ")) {
+            return false;
+        }
+        int port = socket.getPort();
+        // putIfAbsent 是原子的，两个客户端同时抢同一个昵称时只有一个成功
+        Integer owner = nicknames.putIfAbsent(newName, port);
+        if (owner != null && owner != port) {
+            return false;
+        }
+        if (oldName != null && !oldName.equals(newName)) {
+            nicknames.remove(oldName, port);
+        }
+        logger.info("客户端[" + port + "]设置昵称：" + newName);
+        return true;
+    }
+
+    /**
+     * 私信只放入指定客户端的发送队列，不经过房间内的转发
+     * @param target 接收者的昵称
+     * @param relay 编码好的私信帧，标签为发送者的名称
+     * @return false：接收者不在线
+     */
+    public boolean forwardPrivate(String target, byte[] relay) {
+        Integer port = nicknames.get(target);
+        ClientWriter writer = port != null ? connectedClient.get(port) : null;
+        if (writer == null) {
+            return false;
+        }
+        writer.send(relay);
+        return true;
+    }
+
+    /**
+     * 向单个客户端发送系统提示
+     */
+    public void reply(Socket socket, String msg) {
+        ClientWriter writer = connectedClient.get(socket.getPort());
+        if (writer != null) {
+            writer.send(FrameCodec.encodeText(FrameCodec.TYPE_NOTICE, 0, 0, msg, CHARSET));
+        }
+    }
+
+    /**
+     * 发送队列指标：在线客户端数、队列总深度、最大深度、累计丢弃的消息数
+     */
+    public String metrics() {
+        String admission = "活跃线程：" + executorService.getActiveCount()
+                + "，排队连接：" + executorService.getQueue().size() + "，";
+        int clients = 0;
+        long totalDepth = 0;
+        int maxDepth = 0;
+        long dropped = 0;
+        for (ClientWriter writer : connectedClient.values()) {
+            int depth = writer.queueDepth();
+            clients++;
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            dropped += writer.droppedCount();
+        }
+        return admission + "在线客户端：" + clients + "，房间数：" + rooms.size() + "，队列总深度：" + totalDepth
+                + "，最大队列深度：" + maxDepth + "，累计丢弃：" + dropped;
+    }
+
+    /**
+     * 每隔 periodSeconds 秒打印一次发送队列指标
+     */
+    public void startMetricsReporter(int periodSeconds) {
+        metricsReporter = Executors.newSingleThreadScheduledExecutor();
+        metricsReporter.scheduleAtFixedRate(() -> System.out.println("[metrics] " + metrics()),
+                periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 编码转发帧：标签换成发送者的名称，正文从 frame 中按字节复制，不经过字符串
+     * @param socket 发送者
+     * @param roomId 发送者所在房间的编号
+     * @param label 发送者名称编码后的字节
+     */
+    public byte[] encodeRelay(byte type, Socket socket, int roomId, byte[] label, Frame frame) {
+        int length = FrameCodec.labeledLength(label, frame.textLength());
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + length);
+        FrameCodec.writeHeader(buffer, type, FrameCodec.FLAG_LABELED, socket.getPort(), roomId, length);
+        buffer.put((byte) label.length).put(label).put(frame.text());
+        return buffer.array();
+    }
+
+    /**
+     * 房间编号，第一次使用某个房间名时分配
+     */
+    public int roomId(String room) {
+        if (DEFAULT_ROOM.equals(room)) {
+            return 0;
+        }
+        return roomIds.computeIfAbsent(room, name -> nextRoomId.incrementAndGet());
     }
 
     /**
@@ -104,9 +317,16 @@ public class ChatServer {
             while (true) {
                 // 等待客户端连接
                 Socket socket = serverSocket.accept();
+                ChatHandler handler = new ChatHandler(this, socket);
+
+                // 超过限速的连接直接拒绝
+                if (!acceptRateLimiter.tryAcquire()) {
+                    handler.reject(BusyRejectionHandler.BUSY_MESSAGE);
+                    continue;
+                }
 
-                // 向线程池提交任务
-                executorService.execute(new ChatHandler(this, socket));
+                // 向线程池提交任务，线程与等待队列都已满时由拒绝策略处理
+                executorService.execute(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -119,16 +339,29 @@ public class ChatServer {
      * 关闭服务器
      */
     public synchronized void close() {
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (metricsReporter != null) {
+            metricsReporter.shutdownNow();
+        }
+        // 中断仍在处理连接的线程，以及等待发送的写任务
+        executorService.shutdownNow();
+        senderExecutor.shutdownNow();
+        // 绑定端口失败时 serverSocket 为 null
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        logger.close();
     }
 
     public static void main(String[] args) {
+        // 可选参数1：日志配置，例如 "level=INFO,sample=100,body=false"，quiet 表示不记录聊天消息
+        AsyncLogger logger = args.length > 0 ? AsyncLogger.fromSpec(args[0]) : new AsyncLogger();
         // 创建服务器类时传入允许的最大在线用户数
-        ChatServer chatServer = new ChatServer(3);
+        ChatServer chatServer = new ChatServer(3, logger);
+        chatServer.startMetricsReporter(30);
         chatServer.start();
     }
 }
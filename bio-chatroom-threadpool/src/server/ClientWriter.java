@@ -0,0 +1,147 @@
+package server;
+
+import log.AsyncLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 向单个客户端异步发送消息
+ * 转发线程只把消息放入该客户端的有界队列，由发送线程池中的写任务负责真正写 Socket，
+ * 读取消息的线程不会因为其他客户端的 TCP 发送缓冲区已满而阻塞
+ */
+class ClientWriter implements Runnable {
+
+    /** 客户端 Socket */
+    private final Socket socket;
+
+    /** 向该客户端发信息所使用的输出流，只在写任务中使用 */
+    private final OutputStream out;
+
+    /** 待发送的帧，同一条转发消息的所有接收者共享同一个数组 */
+    private final BlockingQueue<byte[]> queue;
+
+    /** 队列已满时的处理策略 */
+    private final OverflowPolicy overflowPolicy;
+
+    /** 执行写任务的线程池 */
+    private final Executor senderExecutor;
+
+    /** 写任务是否已经提交，保证同一时刻最多只有一个写任务在写该客户端 */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /** 因队列已满被丢弃的消息数 */
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    private final AsyncLogger logger;
+
+    ClientWriter(Socket socket, int bufferSize, int queueCapacity,
+                 OverflowPolicy overflowPolicy, Executor senderExecutor, AsyncLogger logger) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.senderExecutor = senderExecutor;
+        this.logger = logger;
+    }
+
+    /**
+     * 将消息放入发送队列，不会阻塞
+     * @param msg 编码好的完整帧，不能修改
+     * @return false：消息被丢弃或该客户端已断开
+     */
+    boolean send(byte[] msg) {
+        if (closed) {
+            return false;
+        }
+        while (!queue.offer(msg)) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                    break;
+                case DISCONNECT:
+                    logger.warn("客户端[" + socket.getPort() + "]发送队列已满，断开连接");
+                    closeQuietly();
+                    return false;
+            }
+        }
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            senderExecutor.execute(this);
+        }
+    }
+
+    /**
+     * 写任务：一次写出队列中已有的消息，最后只 flush 一次
+     */
+    @Override
+    public void run() {
+        try {
+            // 每次最多写一个队列长度的消息，避免一个繁忙的客户端长期占用发送线程
+            int batch = queue.size();
+            byte[] msg;
+            while (batch-- > 0 && (msg = queue.poll()) != null) {
+                out.write(msg);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // 该客户端已断开，由它自己的 ChatHandler 负责移除
+            closeQuietly();
+        } finally {
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * 当前队列中待发送的消息数
+     */
+    int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 累计丢弃的消息数
+     */
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 先关闭 Socket，使阻塞在该客户端上的写操作立即失败，再丢弃尚未发送的消息
+     * @throws IOException
+     */
+    void close() throws IOException {
+        closed = true;
+        queue.clear();
+        socket.close();
+    }
+}
@@ -0,0 +1,16 @@
+package server;
+
+/**
+ * 客户端发送队列已满时的处理策略
+ */
+public enum OverflowPolicy {
+
+    /** 丢弃新消息 */
+    DROP_NEWEST,
+
+    /** 丢弃队列中最早的消息，再放入新消息 */
+    DROP_OLDEST,
+
+    /** 断开该客户端 */
+    DISCONNECT
+}
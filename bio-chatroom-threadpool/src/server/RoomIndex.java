@@ -0,0 +1,54 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 房间到成员的索引，转发消息时只遍历同一房间的成员
+ * 每个房间的成员集合互相独立，加入、离开、遍历都不需要全局锁
+ * @param <T> 成员类型
+ */
+class RoomIndex<T> {
+
+    private final ConcurrentHashMap<String, Set<T>> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * 加入房间，房间不存在时自动创建
+     */
+    void join(String room, T member) {
+        // compute 对同一个 key 是原子的，不会与 leave() 删除空房间冲突
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(member);
+            return members;
+        });
+    }
+
+    /**
+     * 离开房间，房间中没有成员时删除该房间
+     */
+    void leave(String room, T member) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    /**
+     * 房间的当前成员，遍历时不会抛出 ConcurrentModificationException
+     */
+    Set<T> members(String room) {
+        Set<T> members = rooms.get(room);
+        return members != null ? members : Collections.<T>emptySet();
+    }
+
+    /**
+     * 当前房间数
+     */
+    int size() {
+        return rooms.size();
+    }
+}
@@ -1,7 +1,12 @@
 package client;
 
+import protocol.Frame;
+import protocol.FrameCodec;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 public class ChatClient {
 
@@ -14,14 +19,17 @@ public class ChatClient {
     /** 客户端退出命令 */
     private final String QUIT = "\\quit";
 
+    /** 帧中文本使用的字符集 */
+    private final Charset CHARSET = StandardCharsets.UTF_8;
+
     /** 客户端 Socket */
     private Socket socket;
 
-    /** 从服务端读取信息的 Reader */
-    private BufferedReader reader;
+    /** 从服务端读取帧的输入流 */
+    private DataInputStream in;
 
-    /** 向服务端发送消息的 Writer */
-    private BufferedWriter writer;
+    /** 向服务端发送帧的输出流 */
+    private OutputStream out;
 
     /**
      * 发送消息给服务器
@@ -31,8 +39,9 @@ public class ChatClient {
     public void send(String msg) throws IOException {
         // 确定输出流没有被关闭
         if (!socket.isOutputShutdown()) {
-            writer.write(msg + "\n");
-            writer.flush();
+            // 命令与聊天消息都编码为二进制帧，服务端按帧头分发
+            out.write(FrameCodec.fromInput(msg, CHARSET));
+            out.flush();
         }
     }
 
@@ -47,9 +56,9 @@ public class ChatClient {
      * 关闭服务器
      */
     public void close() {
-        if (writer != null) {
+        if (out != null) {
             try {
-                writer.close();
+                out.close();
                 System.out.println("关闭客户端");
             } catch (IOException e) {
                 e.printStackTrace();
@@ -63,20 +72,18 @@ public class ChatClient {
             socket = new Socket(SERVER_HOST, SERVER_PORT);
 
             // 创建IO流
-            reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
-            );
-            writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
+            in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream())
             );
+            out = new BufferedOutputStream(socket.getOutputStream());
 
             // 处理用户输入
             new Thread(new UserInputHandler(this)).start();
 
             // 读取服务器转发的信息
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
-                System.out.println(msg);
+            Frame frame = null;
+            while ((frame = FrameCodec.read(in)) != null) {
+                System.out.println(FrameCodec.display(frame, CHARSET));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,17 @@
+package log;
+
+/**
+ * 日志的输出目标，只在 AsyncLogger 的后台线程中调用，实现类不需要考虑线程安全
+ */
+public interface LogSink {
+
+    /**
+     * 写出一行日志，可以先放入缓冲区
+     */
+    void write(String line);
+
+    /**
+     * 日志队列已经取空，将缓冲区中的内容真正写出
+     */
+    void flush();
+}
@@ -0,0 +1,239 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 二进制帧的编解码，客户端与服务端共用
+ *
+ * 帧头固定 16 字节（大端序），后面紧跟 length 字节的 payload：
+ * <pre>
+ * | version(1) | type(1) | flags(2) | senderId(4) | roomId(4) | length(4) | payload(length) |
+ * </pre>
+ * 1. senderId：发送者的端口号，客户端发出的帧填 0，由服务端转发时填写
+ * 2. roomId：消息所属房间的编号，客户端发出的帧填 0，表示当前所在房间
+ * 3. flags 含 FLAG_LABELED 时，payload 以标签开头：| labelLength(1) | label | text |，
+ *    标签是发送者（服务端转发时）或私信接收者（客户端发出时）的名称，
+ *    服务端只需要读取、替换标签，不需要解码正文
+ */
+public final class FrameCodec {
+
+    /** 协议版本，帧头中的版本与之不同时拒绝该连接 */
+    public static final byte VERSION = 1;
+    /** 帧头长度 */
+    public static final int HEADER_LENGTH = 16;
+    /** 默认允许的最大 payload 长度 */
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+    /** 标签最大字节数（长度字段只有 1 个字节） */
+    public static final int MAX_LABEL_LENGTH = 255;
+    /**
+     * 聊天消息、私信正文的最大字节数：服务端转发时换上最长的标签，payload 仍不超过 MAX_PAYLOAD_LENGTH，
+     * 并且整个转发帧（含帧头）不超过 BufferPool 最大的一档（64K）
+     */
+    public static final int MAX_TEXT_LENGTH = MAX_PAYLOAD_LENGTH - HEADER_LENGTH - 1 - MAX_LABEL_LENGTH;
+
+    /** 房间内的聊天消息 */
+    public static final byte TYPE_MESSAGE = 1;
+    /** 私信，payload 带标签 */
+    public static final byte TYPE_PRIVATE = 2;
+    /** 加入房间，payload 为房间名 */
+    public static final byte TYPE_JOIN = 3;
+    /** 离开当前房间，回到默认房间 */
+    public static final byte TYPE_LEAVE = 4;
+    /** 设置昵称，payload 为昵称 */
+    public static final byte TYPE_NICK = 5;
+    /** 退出 */
+    public static final byte TYPE_QUIT = 6;
+    /** 服务端发给客户端的系统提示 */
+    public static final byte TYPE_NOTICE = 7;
+
+    /** payload 以标签开头 */
+    public static final short FLAG_LABELED = 1;
+
+    /** 客户端输入的命令 */
+    private static final String QUIT = "\\quit";
+    private static final String JOIN = "\\join";
+    private static final String LEAVE = "\\leave";
+    private static final String NICK = "\\nick";
+    private static final String PRIVATE_PREFIX = "@";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private FrameCodec() {
+    }
+
+    /**
+     * 在 dst 的当前位置写入帧头
+     */
+    public static void writeHeader(ByteBuffer dst, byte type, short flags, int senderId, int roomId, int length) {
+        dst.put(VERSION).put(type).putShort(flags).putInt(senderId).putInt(roomId).putInt(length);
+    }
+
+    /**
+     * 编码一个完整的帧
+     */
+    public static byte[] encode(byte type, short flags, int senderId, int roomId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        writeHeader(frame, type, flags, senderId, roomId, payload.length);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    /**
+     * 编码一个 payload 为文本的帧
+     */
+    public static byte[] encodeText(byte type, int senderId, int roomId, String text, Charset charset) {
+        return encode(type, (short) 0, senderId, roomId, text.getBytes(charset));
+    }
+
+    /**
+     * 编码一个带标签的帧
+     * @param label 标签，最多 MAX_LABEL_LENGTH 字节
+     * @param text 正文
+     */
+    public static byte[] encodeLabeled(byte type, int senderId, int roomId, byte[] label, byte[] text) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + labeledLength(label, text.length));
+        writeHeader(frame, type, FLAG_LABELED, senderId, roomId, labeledLength(label, text.length));
+        frame.put((byte) label.length).put(label).put(text);
+        return frame.array();
+    }
+
+    /**
+     * 带标签的 payload 长度
+     */
+    public static int labeledLength(byte[] label, int textLength) {
+        return 1 + label.length + textLength;
+    }
+
+    /**
+     * 聊天消息或私信的正文超过 MAX_TEXT_LENGTH，服务端换上发送者的标签后接收者无法解码，不能转发
+     */
+    public static boolean isOversized(Frame frame) {
+        return (frame.type() == TYPE_MESSAGE || frame.type() == TYPE_PRIVATE) && frame.textLength() > MAX_TEXT_LENGTH;
+    }
+
+    /**
+     * 从帧头中读出 payload 长度，并检查版本与长度
+     * @param header 处于读模式，从 position 开始至少有 HEADER_LENGTH 字节
+     * @throws IOException 版本不支持或长度超过上限
+     */
+    public static int payloadLength(ByteBuffer header, int maxPayloadLength) throws IOException {
+        int start = header.position();
+        byte version = header.get(start);
+        if (version != VERSION) {
+            throw new IOException("不支持的协议版本: " + version);
+        }
+        int length = header.getInt(start + 12);
+        if (length < 0 || length > maxPayloadLength) {
+            throw new IOException("帧长度超过上限: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * 从 src 的当前位置读取一个完整的帧，调用前需确认数据足够
+     * 返回的帧的 payload 是 src 的视图，不复制数据，src 中的数据被覆盖后失效
+     */
+    public static Frame read(ByteBuffer src, int payloadLength) {
+        int start = src.position();
+        ByteBuffer payload = src.duplicate();
+        payload.limit(start + HEADER_LENGTH + payloadLength);
+        payload.position(start + HEADER_LENGTH);
+        src.position(start + HEADER_LENGTH + payloadLength);
+        return new Frame(src.get(start + 1), src.getShort(start + 2),
+                src.getInt(start + 4), src.getInt(start + 8), payload);
+    }
+
+    /**
+     * 从阻塞式输入流中读取一个帧
+     * @return 对端在帧边界处关闭连接时返回 null
+     * @throws IOException 读取失败、帧不完整或帧头非法
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        header[0] = (byte) first;
+        in.readFully(header, 1, HEADER_LENGTH - 1);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte[] payload = new byte[payloadLength(buffer, MAX_PAYLOAD_LENGTH)];
+        in.readFully(payload);
+        return new Frame(buffer.get(1), buffer.getShort(2), buffer.getInt(4), buffer.getInt(8), ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * 将用户在控制台输入的一行转换为帧
+     * "\quit" "\join 房间名" "\leave" "\nick 昵称" "@昵称 内容" 为命令，其余为聊天消息
+     * 消息与私信的正文超过 MAX_TEXT_LENGTH 字节时截断
+     */
+    public static byte[] fromInput(String input, Charset charset) {
+        if (QUIT.equals(input)) {
+            return encode(TYPE_QUIT, (short) 0, 0, 0, EMPTY);
+        }
+        if (LEAVE.equals(input)) {
+            return encode(TYPE_LEAVE, (short) 0, 0, 0, EMPTY);
+        }
+        if (input.startsWith(JOIN + " ")) {
+            return encodeText(TYPE_JOIN, 0, 0, input.substring(JOIN.length()).trim(), charset);
+        }
+        if (input.startsWith(NICK + " ")) {
+            return encodeText(TYPE_NICK, 0, 0, input.substring(NICK.length()).trim(), charset);
+        }
+        int space = input.indexOf(' ');
+        if (input.startsWith(PRIVATE_PREFIX) && space > PRIVATE_PREFIX.length()) {
+            byte[] target = input.substring(PRIVATE_PREFIX.length(), space).getBytes(charset);
+            if (target.length <= MAX_LABEL_LENGTH) {
+                return encodeLabeled(TYPE_PRIVATE, 0, 0, target, textBytes(input.substring(space + 1), charset));
+            }
+        }
+        return encode(TYPE_MESSAGE, (short) 0, 0, 0, textBytes(input, charset));
+    }
+
+    /**
+     * 编码正文，最多 MAX_TEXT_LENGTH 字节，超出时在字符边界处截断
+     */
+    private static byte[] textBytes(String text, Charset charset) {
+        byte[] bytes = text.getBytes(charset);
+        if (bytes.length <= MAX_TEXT_LENGTH) {
+            return bytes;
+        }
+        // 空间不足时编码器停在完整的字符之后，不会留下半个多字节字符
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_TEXT_LENGTH);
+        encoder.encode(CharBuffer.wrap(text), buffer, true);
+        byte[] truncated = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(truncated);
+        return truncated;
+    }
+
+    /**
+     * 判断用户输入是否为退出命令
+     */
+    public static boolean isQuit(String input) {
+        return QUIT.equals(input);
+    }
+
+    /**
+     * 将服务端发来的帧转换为显示给用户的文本
+     */
+    public static String display(Frame frame, Charset charset) {
+        switch (frame.type()) {
+            case TYPE_NOTICE:
+                return frame.text(charset);
+            case TYPE_PRIVATE:
+                return "[私信]" + frame.label(charset) + ": " + frame.text(charset);
+            default:
+                return frame.isLabeled()
+                        ? frame.label(charset) + ": " + frame.text(charset) : frame.text(charset);
+        }
+    }
+}
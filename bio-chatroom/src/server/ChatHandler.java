@@ -1,8 +1,12 @@
 package server;
 
-import java.io.BufferedReader;
+import log.AsyncLogger;
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Socket;
 
 public class ChatHandler implements Runnable{
@@ -13,9 +17,27 @@ public class ChatHandler implements Runnable{
     /** 当前客户端 Socket */
     private Socket socket;
 
+    /** 当前客户端所在的房间及其编号，只在本线程中修改 */
+    private String room = ChatServer.DEFAULT_ROOM;
+    private int roomId = 0;
+
+    /** 当前客户端的昵称，没有设置时为 null */
+    private String nickname;
+
+    /** 显示名称编码后的字节，作为转发帧的标签，只在名称变化时编码一次 */
+    private byte[] nameBytes;
+
     public ChatHandler(ChatServer server, Socket socket) {
         this.server = server;
         this.socket = socket;
+        this.nameBytes = name().getBytes(ChatServer.CHARSET);
+    }
+
+    /**
+     * 当前客户端的显示名称：设置了昵称时使用昵称，否则使用端口号
+     */
+    private String name() {
+        return nickname != null ? nickname : "客户端[" + socket.getPort() + "]";
     }
 
     @Override
@@ -24,32 +46,90 @@ public class ChatHandler implements Runnable{
             // 存储新上线用户
             server.addClient(socket);
 
-            // 读取用户发送的消息
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
+            // 读取用户发送的帧
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), ChatServer.IO_BUFFER_SIZE)
             );
 
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
+            Frame frame = null;
+            while ((frame = FrameCodec.read(in)) != null) {
                 // 检查用户是否退出
-                if (server.readyToQuit(msg)) {
+                if (frame.type() == FrameCodec.TYPE_QUIT) {
                     break;
                 }
-
-                String fwdMsg = "客户端[" + socket.getPort() + "]：" + msg + "\n";
-                System.out.print(fwdMsg);
-
-                // 转发消息至其他在线用户
-                server.forwardMessage(socket, fwdMsg);
+                handle(frame);
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             try {
-                server.removeClient(socket);
+                server.removeClient(socket, room, nickname);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
+
+    /**
+     * 按帧头中的类型分发，聊天消息的正文不需要解码
+     */
+    private void handle(Frame frame) {
+        if (FrameCodec.isOversized(frame)) {
+            // 换上发送者的标签后超过帧长度上限，接收者无法解码
+            server.reply(socket, "消息过长，最多 " + FrameCodec.MAX_TEXT_LENGTH + " 字节，未发送");
+            return;
+        }
+        switch (frame.type()) {
+            case FrameCodec.TYPE_JOIN: // 加入房间
+                changeRoom(frame.text(ChatServer.CHARSET));
+                break;
+            case FrameCodec.TYPE_LEAVE: // 回到默认房间
+                changeRoom(ChatServer.DEFAULT_ROOM);
+                break;
+            case FrameCodec.TYPE_NICK: // 设置昵称
+                String newName = frame.text(ChatServer.CHARSET);
+                if (server.changeNickname(socket, nickname, newName)) {
+                    nickname = newName;
+                    nameBytes = newName.getBytes(ChatServer.CHARSET);
+                    server.reply(socket, "昵称已设置为：" + nickname);
+                } else {
+                    server.reply(socket, "昵称不可用：" + newName);
+                }
+                break;
+            case FrameCodec.TYPE_PRIVATE: // 私信只发给指定用户，标签换成发送者的名称
+                if (frame.isLabeled()) {
+                    String target = frame.label(ChatServer.CHARSET);
+                    byte[] relay = server.encodeRelay(FrameCodec.TYPE_PRIVATE, socket, roomId, nameBytes, frame);
+                    if (!server.forwardPrivate(target, relay)) {
+                        server.reply(socket, "用户不在线：" + target);
+                    }
+                }
+                break;
+            case FrameCodec.TYPE_MESSAGE:
+                AsyncLogger logger = server.logger();
+                if (logger.sampleMessage()) {
+                    // 只有需要记录正文时才解码
+                    logger.message(name(), logger.logBodies() ? frame.text(ChatServer.CHARSET) : null, frame.textLength());
+                }
+
+                // 转发消息至同一房间的其他在线用户
+                server.forwardMessage(socket, room,
+                        server.encodeRelay(FrameCodec.TYPE_MESSAGE, socket, roomId, nameBytes, frame));
+                break;
+            default:
+                // 忽略不认识的帧类型，便于以后扩展协议
+                break;
+        }
+    }
+
+    private void changeRoom(String target) {
+        if (target.isEmpty()) {
+            server.reply(socket, "房间名不能为空");
+            return;
+        }
+        server.changeRoom(socket, room, target);
+        room = target;
+        roomId = server.roomId(target);
+        server.reply(socket, "已进入房间：" + room);
+    }
 }
@@ -1,34 +1,88 @@
 package server;
 
-import java.io.BufferedWriter;
+import log.AsyncLogger;
+import protocol.Frame;
+import protocol.FrameCodec;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
 
     /** 服务器监听端口 */
     private int SERVER_PORT = 8888;
 
-    /** 客户端退出标志（客户端发送\quit表示退出聊天室 */
-    private final String QUIT = "\\quit";
+    /** 帧中文本使用的字符集 */
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** 默认房间，新上线的客户端都在该房间中，编号为 0 */
+    static final String DEFAULT_ROOM = "lobby";
+
+    /** 昵称最大长度 */
+    private final int MAX_NICKNAME_LENGTH = 20;
+
+    /** 等待 accept 的连接队列长度，大量客户端同时上线时避免连接被拒绝 */
+    private final int BACKLOG = 1024;
+
+    /** 每个连接的读写缓冲区大小（字节数），连接数很多时可以明显减少内存占用 */
+    static final int IO_BUFFER_SIZE = 1024;
 
     /** 服务端 Socket */
     private ServerSocket serverSocket;
 
     /**
-     * 存储已连接的客户端
+     * 是否为每个连接创建一个虚拟线程（需要 JDK 21 及以上）
+     * false：为每个连接创建一个平台线程
+     */
+    private boolean virtualThreads;
+
+    /** 虚拟线程模式下执行 ChatHandler 的线程池，每个任务一个虚拟线程 */
+    private ExecutorService handlerExecutor;
+
+    /**
+     * 存储已连接的客户端，读写均无需全局锁，遍历时不会抛出 ConcurrentModificationException
      * key：客户端的端口号
-     * value：向该端口发信息所使用的 Writer
+     * value：向该端口发信息所使用的 ClientWriter
      */
-    private Map<Integer, Writer> connectedClients;
+    private Map<Integer, ClientWriter> connectedClients;
+
+    /** 房间 -> 成员端口号，转发时只遍历发送者所在房间的成员 */
+    private RoomIndex<Integer> rooms;
+
+    /** 昵称 -> 端口号，私信时直接定位接收者，不遍历在线列表 */
+    private Map<String, Integer> nicknames;
+
+    /** 房间名 -> 房间编号，填写在转发帧的 roomId 中 */
+    private Map<String, Integer> roomIds = new ConcurrentHashMap<>();
+    private AtomicInteger nextRoomId = new AtomicInteger();
+
+    /** 异步日志，连接线程只把日志放入环形缓冲区，不直接写控制台 */
+    private AsyncLogger logger;
 
     public ChatServer() {
-        connectedClients = new HashMap<>();
+        this(false);
+    }
+
+    public ChatServer(boolean virtualThreads) {
+        this(virtualThreads, new AsyncLogger());
+    }
+
+    public ChatServer(boolean virtualThreads, AsyncLogger logger) {
+        this.virtualThreads = virtualThreads;
+        this.logger = logger;
+        connectedClients = new ConcurrentHashMap<>();
+        rooms = new RoomIndex<>();
+        nicknames = new ConcurrentHashMap<>();
     }
 
     /**
@@ -36,64 +90,188 @@ public class ChatServer {
      * @param socket 新增客户端的socket
      * @throws IOException
      */
-    public synchronized void addClient(Socket socket) throws IOException {
+    public void addClient(Socket socket) throws IOException {
         if (socket != null) {
             int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
-            connectedClients.put(port, writer);
-            System.out.println("客户端[" + port + "]已连接到服务器");
+            connectedClients.put(port, new ClientWriter(socket, IO_BUFFER_SIZE));
+            rooms.join(DEFAULT_ROOM, port);
+            logger.info("客户端[" + port + "]已连接到服务器");
         }
     }
 
     /**
      * 移除已下线客户端
      * @param socket 已下线的客户端socket
+     * @param room 该客户端所在的房间
+     * @param nickname 该客户端的昵称，没有设置时为 null
      * @throws IOException
      */
-    public synchronized void removeClient(Socket socket) throws IOException {
+    public void removeClient(Socket socket, String room, String nickname) throws IOException {
         if (socket != null) {
             int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                connectedClients.get(port).close();
+            rooms.leave(room, port);
+            if (nickname != null) {
+                nicknames.remove(nickname, port);
+            }
+            ClientWriter writer = connectedClients.remove(port);
+            if (writer != null) {
+                writer.close();
             }
-            connectedClients.remove(port);
-            System.out.println("客户端[" + port + "]已断开连接");
+            logger.info("客户端[" + port + "]已断开连接");
+        }
+    }
+
+    /**
+     * 将客户端从一个房间移到另一个房间
+     * @param socket 客户端socket
+     * @param from 原来所在的房间
+     * @param to 要加入的房间
+     */
+    public void changeRoom(Socket socket, String from, String to) {
+        int port = socket.getPort();
+        if (from.equals(to)) {
+            return;
         }
+        rooms.join(to, port);
+        rooms.leave(from, port);
+        logger.info("客户端[" + port + "]进入房间：" + to);
     }
 
     /**
-     * 转发信息给其他所有在线客户端
+     * 转发信息给同一房间的其他在线客户端
+     * 不持有全局锁：不同发送者可以同时转发，只有写同一个客户端时才需要排队
      * @param socket 发送信息的客户端
-     * @param fwdMsg 该客户端发送的信息
-     * @throws IOException
+     * @param room 发送者所在的房间
+     * @param fwdMsg 编码好的转发帧，所有接收者共享
      */
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException {
-        for (Integer id : connectedClients.keySet()) {
-            if (!id.equals(socket.getPort())) {
-                Writer writer = connectedClients.get(id);
-                writer.write(fwdMsg);
-                writer.flush();
+    public void forwardMessage(Socket socket, String room, byte[] fwdMsg) {
+        int currentPort = socket.getPort();
+        for (Integer port : rooms.members(room)) {
+            ClientWriter writer = connectedClients.get(port);
+            if (port != currentPort && writer != null) {
+                try {
+                    writer.send(fwdMsg);
+                } catch (IOException e) {
+                    // 该客户端已断开，由它自己的 ChatHandler 负责移除，不影响转发给其他客户端
+                    logger.warn("客户端[" + port + "]转发失败：" + e.getMessage());
+                }
             }
         }
     }
 
+    /**
+     * 设置昵称
+     * @param socket 客户端socket
+     * @param oldName 原来的昵称，没有设置时为 null
+     * @param newName 新昵称
+     * @return false：昵称不合法或已被其他客户端占用
+     */
+    public boolean changeNickname(Socket socket, String oldName, String newName) {
+        if (newName.isEmpty() || newName.length() > MAX_NICKNAME_LENGTH || newName.contains(" ")) {
+            return false;
+        }
+        int port = socket.getPort();
+        // putIfAbsent 是原子的，两个客户端同时抢同一个昵称时只有一个成功
+        Integer owner = nicknames.putIfAbsent(newName, port);
+        if (owner != null && owner != port) {
+            return false;
+        }
+        if (oldName != null && !oldName.equals(newName)) {
+            nicknames.remove(oldName, port);
+        }
+        logger.info("客户端[" + port + "]设置昵称：" + newName);
+        return true;
+    }
+
+    /**
+     * 私信只发给指定的客户端，不经过房间内的转发
+     * @param target 接收者的昵称
+     * @param relay 编码好的私信帧，标签为发送者的名称
+     * @return false：接收者不在线
+     */
+    public boolean forwardPrivate(String target, byte[] relay) {
+        Integer port = nicknames.get(target);
+        ClientWriter writer = port != null ? connectedClients.get(port) : null;
+        if (writer == null) {
+            return false;
+        }
+        try {
+            writer.send(relay);
+        } catch (IOException e) {
+            logger.warn("客户端[" + port + "]转发失败：" + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * 向单个客户端发送系统提示
+     */
+    public void reply(Socket socket, String msg) {
+        ClientWriter writer = connectedClients.get(socket.getPort());
+        if (writer != null) {
+            try {
+                writer.send(FrameCodec.encodeText(FrameCodec.TYPE_NOTICE, 0, 0, msg, CHARSET));
+            } catch (IOException e) {
+                logger.warn("客户端[" + socket.getPort() + "]发送失败：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 编码转发帧：标签换成发送者的名称，正文从 frame 中按字节复制，不经过字符串
+     * @param socket 发送者
+     * @param roomId 发送者所在房间的编号
+     * @param label 发送者名称编码后的字节
+     */
+    public byte[] encodeRelay(byte type, Socket socket, int roomId, byte[] label, Frame frame) {
+        int length = FrameCodec.labeledLength(label, frame.textLength());
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + length);
+        FrameCodec.writeHeader(buffer, type, FrameCodec.FLAG_LABELED, socket.getPort(), roomId, length);
+        buffer.put((byte) label.length).put(label).put(frame.text());
+        return buffer.array();
+    }
+
+    AsyncLogger logger() {
+        return logger;
+    }
+
+    /**
+     * 房间编号，第一次使用某个房间名时分配
+     */
+    public int roomId(String room) {
+        if (DEFAULT_ROOM.equals(room)) {
+            return 0;
+        }
+        return roomIds.computeIfAbsent(room, name -> nextRoomId.incrementAndGet());
+    }
+
     /**
      * 服务端主要逻辑
      */
     public void start() {
         try {
+            if (virtualThreads) {
+                handlerExecutor = newVirtualThreadPerTaskExecutor();
+                if (handlerExecutor == null) {
+                    System.out.println("当前 JDK 不支持虚拟线程，改为每个连接一个平台线程");
+                }
+            }
+
             // 为服务端绑定端口
-            serverSocket = new ServerSocket(SERVER_PORT);
-            System.out.println("服务器启动，监听端口：" + SERVER_PORT + "...");
+            serverSocket = new ServerSocket(SERVER_PORT, BACKLOG);
+            System.out.println("服务器启动，监听端口：" + SERVER_PORT
+                    + (handlerExecutor != null ? "（虚拟线程模式）" : "") + "...");
 
             while (true) {
                 // accept()方法是阻塞式的
                 Socket socket = serverSocket.accept();
 
                 // 有客户端连接后，为它创建一个ChatHandler线程
-                new Thread(new ChatHandler(this, socket)).start();
+                if (handlerExecutor != null) {
+                    handlerExecutor.execute(new ChatHandler(this, socket));
+                } else {
+                    new Thread(new ChatHandler(this, socket)).start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -103,18 +281,25 @@ public class ChatServer {
     }
 
     /**
-     * 判断客户端是否准备退出
-     * @param msg 客户端发送的消息
-     * @return true：准备退出
+     * 通过反射调用 Executors.newVirtualThreadPerTaskExecutor()，使代码在 JDK 21 以下也能编译运行
+     * @return 当前 JDK 不支持虚拟线程时返回 null
      */
-    public boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     /**
      * 关闭服务器
      */
     public synchronized void close() {
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdownNow();
+        }
         if (serverSocket != null) {
             try {
                 serverSocket.close();
@@ -123,10 +308,15 @@ public class ChatServer {
                 e.printStackTrace();
             }
         }
+        logger.close();
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // 参数为 virtual 时为每个连接使用虚拟线程
+        boolean virtualThreads = args.length > 0 && "virtual".equals(args[0]);
+        // 可选参数2：日志配置，例如 "level=INFO,sample=100,body=false"，quiet 表示不记录聊天消息
+        AsyncLogger logger = args.length > 1 ? AsyncLogger.fromSpec(args[1]) : new AsyncLogger();
+        ChatServer chatServer = new ChatServer(virtualThreads, logger);
         chatServer.start();
     }
 }
@@ -0,0 +1,52 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 向单个客户端发送消息，每个客户端各有一把锁
+ * 多个线程同时向同一个客户端转发时只在该客户端上排队，不影响向其他客户端的转发
+ */
+class ClientWriter {
+
+    /** 客户端 Socket */
+    private final Socket socket;
+
+    /** 向该客户端发信息所使用的输出流 */
+    private final OutputStream out;
+
+    /** 保证一条消息的 write + flush 不被其他线程打断；不使用 synchronized，避免虚拟线程占住载体线程 */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    ClientWriter(Socket socket, int bufferSize) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+    }
+
+    /**
+     * 发送一条消息
+     * @param frame 编码好的完整帧，多个接收者共享，不能修改
+     * @throws IOException
+     */
+    void send(byte[] frame) throws IOException {
+        lock.lock();
+        try {
+            out.write(frame);
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 先关闭 Socket，使阻塞在该客户端上的写操作立即失败，再释放输出流
+     * @throws IOException
+     */
+    void close() throws IOException {
+        socket.close();
+        out.close();
+    }
+}
@@ -0,0 +1,94 @@
+package loadgen;
+
+/**
+ * 延迟直方图，分桶方式与 HdrHistogram 相同：
+ * 小于 128 的值每个值一个桶；更大的值按 2 的幂分段，每段 64 个桶，相对误差不超过 1/64
+ * 记录一个值只是一次数组自增，不保存原始样本，内存占用固定
+ * 只在负载生成器的线程中使用，不是线程安全的
+ */
+class LatencyHistogram {
+
+    /** 每段的桶数为 2 ^ SUB_BUCKET_BITS */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** 小于该值时每个值一个桶 */
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+
+    /** 覆盖 0 ~ Long.MAX_VALUE 的所有值 */
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT];
+
+    private long totalCount = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * 记录一个值，负数按 0 记录
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * 百分位数：至少 percentile% 的样本不大于返回值（返回的是所在桶的上界，不超过最大值）
+     * @param percentile 0 ~ 100
+     */
+    long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // value >>> exponent 落在 [SUB_BUCKET_COUNT, 2 * SUB_BUCKET_COUNT) 中
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKET_COUNT + (int) (value >>> exponent);
+    }
+
+    /**
+     * 第 index 个桶能表示的最大值
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << exponent;
+        return lowest + (1L << exponent) - 1;
+    }
+}
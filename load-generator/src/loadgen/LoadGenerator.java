@@ -0,0 +1,344 @@
+package loadgen;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天服务器的负载生成器，可以测试 bio、bio-threadpool、nio、aio 四种服务器
+ *
+ * 在一个线程中用一个 Selector 管理 N 个模拟客户端，它们都在默认房间中：
+ * 1. 按目标速率轮流让各客户端发送指定大小的聊天消息，正文的前 8 字节是该消息的计划发送时间（System.nanoTime()）
+ * 2. 其他客户端收到转发的消息时，用当前时间减去计划发送时间，得到端到端的转发延迟
+ * 使用计划发送时间而不是实际写出的时间：服务器变慢导致消息积压在发送队列中时，排队的时间也计入延迟，
+ * 不会因为负载生成器跟着变慢而低估延迟（coordinated omission）
+ *
+ * 客户端连接后先设置昵称，收到服务端的回复才算在线：
+ * 被拒绝或在等待队列中的连接不发送消息，也不计入应收的消息数
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 8888;
+    private static final int DEFAULT_CLIENT_COUNT = 10;
+    /** 默认每秒发送的消息总数（所有客户端合计） */
+    private static final int DEFAULT_RATE = 1000;
+    private static final int DEFAULT_MESSAGE_SIZE = 64;
+    private static final int DEFAULT_DURATION_SECONDS = 10;
+    private static final int DEFAULT_WARMUP_SECONDS = 2;
+
+    /** 正文开头的时间戳长度，也是消息的最小长度 */
+    private static final int TIMESTAMP_LENGTH = 8;
+    /** 等待客户端连接并完成握手的最长时间 */
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    /** 停止发送后，等待在途消息到达的最长时间 */
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+    /** 报告中列出的百分位 */
+    private static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99, 100};
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final int rate;
+    private final int messageSize;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final Charset charset = StandardCharsets.UTF_8;
+
+    private Selector selector;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    /** 端到端延迟，单位微秒，只记录预热结束后发出的消息 */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    /** 消息模板：帧头与填充字节，发送时复制后写入时间戳 */
+    private byte[] template;
+
+    private int connected = 0;
+    /** 连接失败或上线前被服务端拒绝的客户端数 */
+    private int failed = 0;
+    private int online = 0;
+    /** 在线后被服务端断开的客户端数 */
+    private int dropped = 0;
+
+    /** 预热结束（开始统计）的时间，开始发送前不统计任何消息 */
+    private long measureStart = Long.MAX_VALUE;
+    /** 统计期间发出的消息数 */
+    private long sent = 0;
+    /** 统计期间发出的消息应被转发的次数：每条消息发给房间内其他所有在线客户端 */
+    private long expected = 0;
+    private long received = 0;
+    private long lastReceived;
+    /** 进度报告中上一秒的计数 */
+    private long intervalSent = 0;
+    private long intervalReceived = 0;
+    /** 下一个发送者在发送者列表中的位置 */
+    private int nextSender = 0;
+
+    public LoadGenerator(String host, int port, int clientCount, int rate, int messageSize,
+                         int durationSeconds, int warmupSeconds) {
+        this.host = host;
+        this.port = port;
+        this.clientCount = clientCount;
+        this.rate = rate;
+        // 转发时服务端会加上发送者名称作为标签，整帧不能超过客户端允许的最大长度
+        this.messageSize = Math.min(Math.max(messageSize, TIMESTAMP_LENGTH),
+                FrameCodec.MAX_PAYLOAD_LENGTH - 1 - FrameCodec.MAX_LABEL_LENGTH);
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+    }
+
+    Charset charset() {
+        return charset;
+    }
+
+    /**
+     * 负载生成器主要逻辑
+     */
+    public void start() {
+        try {
+            selector = Selector.open();
+            template = encodeTemplate();
+
+            connect();
+            int waiting = 0;
+            for (SimulatedClient client : clients) {
+                if (!client.isOnline() && !client.isClosed()) {
+                    waiting++;
+                }
+            }
+            System.out.println("连接成功：" + connected + "/" + clientCount + "，在线：" + online
+                    + (failed > 0 ? "，连接失败或被拒绝：" + failed : "")
+                    + (waiting > 0 ? "，未被服务（不参与测试）：" + waiting : ""));
+            if (online < 2) {
+                System.out.println("在线客户端少于 2 个，无法测量转发");
+                return;
+            }
+
+            run();
+            drain();
+            report();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SimulatedClient client : clients) {
+                client.close();
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 建立所有连接并完成握手，超时仍未在线的连接（例如在服务端的等待队列中）不参与测试
+     */
+    private void connect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (int i = 0; i < clientCount; i++) {
+            clients.add(new SimulatedClient(this, selector, address));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HANDSHAKE_TIMEOUT_MILLIS);
+        while (online + failed + dropped < clientCount && System.nanoTime() < deadline) {
+            select(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+    }
+
+    /**
+     * 预热并按目标速率发送消息，第 i 条消息的计划发送时间为 start + i / rate
+     */
+    private void run() throws IOException {
+        List<SimulatedClient> senders = new ArrayList<>();
+        for (SimulatedClient client : clients) {
+            if (client.isOnline()) {
+                senders.add(client);
+            }
+        }
+
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        double interval = (double) TimeUnit.SECONDS.toNanos(1) / rate;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long index = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            // 补发所有计划时间已到的消息
+            long scheduled;
+            while ((scheduled = start + (long) (index * interval)) <= now && scheduled < end) {
+                SimulatedClient sender = nextSender(senders);
+                if (sender == null) {
+                    System.out.println("所有客户端都已断开");
+                    return;
+                }
+                send(sender, scheduled);
+                index++;
+            }
+            if (now >= nextReport) {
+                progress(nextReport <= measureStart ? "预热" : "测试");
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            long wait = Math.min(start + (long) (index * interval), nextReport) - System.nanoTime();
+            if (wait < TimeUnit.MILLISECONDS.toNanos(1)) {
+                selector.selectNow();
+                processSelectedKeys();
+            } else {
+                select(TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+        }
+    }
+
+    /**
+     * 轮流选取仍然在线的客户端
+     */
+    private SimulatedClient nextSender(List<SimulatedClient> senders) {
+        for (int i = 0; i < senders.size(); i++) {
+            SimulatedClient client = senders.get(nextSender);
+            nextSender = (nextSender + 1) % senders.size();
+            if (client.isOnline()) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    private void send(SimulatedClient sender, long scheduled) {
+        byte[] frame = template.clone();
+        ByteBuffer.wrap(frame).putLong(FrameCodec.HEADER_LENGTH, scheduled);
+        if (scheduled >= measureStart) {
+            sent++;
+            expected += online - 1;
+        }
+        intervalSent++;
+        sender.send(frame);
+    }
+
+    /**
+     * 停止发送后等待在途的消息，全部到达或超时后返回
+     */
+    private void drain() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        while (received < expected && System.nanoTime() < deadline) {
+            select(Math.min(100, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+    }
+
+    private void select(long timeoutMillis) throws IOException {
+        selector.select(Math.max(1, timeoutMillis));
+        processSelectedKeys();
+    }
+
+    private void processSelectedKeys() {
+        Set<SelectionKey> selectionKeys = selector.selectedKeys();
+        for (SelectionKey key : selectionKeys) {
+            if (key.isValid()) {
+                ((SimulatedClient) key.attachment()).handle();
+            }
+        }
+        selectionKeys.clear();
+    }
+
+    void onConnected() {
+        connected++;
+    }
+
+    void onOnline() {
+        online++;
+    }
+
+    void onClosed(boolean wasOnline) {
+        if (wasOnline) {
+            online--;
+            dropped++;
+        } else {
+            failed++;
+        }
+    }
+
+    /**
+     * 在线客户端收到一条转发的聊天消息
+     */
+    void onMessage(Frame frame) {
+        if (frame.textLength() < TIMESTAMP_LENGTH) {
+            // 不是负载生成器发出的消息
+            return;
+        }
+        long now = System.nanoTime();
+        long scheduled = frame.text().getLong();
+        intervalReceived++;
+        if (scheduled >= measureStart) {
+            received++;
+            lastReceived = now;
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+        }
+    }
+
+    /**
+     * 消息帧模板：计划发送时间之后用 'x' 填充到指定大小
+     */
+    private byte[] encodeTemplate() {
+        byte[] text = new byte[messageSize];
+        Arrays.fill(text, TIMESTAMP_LENGTH, text.length, (byte) 'x');
+        return FrameCodec.encode(FrameCodec.TYPE_MESSAGE, (short) 0, 0, 0, text);
+    }
+
+    private void progress(String phase) {
+        System.out.println("[" + phase + "] 发送：" + intervalSent + " 条/秒，接收：" + intervalReceived
+                + " 条/秒，在线：" + online);
+        intervalSent = 0;
+        intervalReceived = 0;
+    }
+
+    private void report() {
+        double seconds = durationSeconds;
+        double receiveSeconds = Math.max(seconds, (lastReceived - measureStart) / 1e9);
+        System.out.println("========== 测试结果 ==========");
+        System.out.println("服务器：" + host + ":" + port + "，在线客户端：" + online + "/" + clientCount
+                + (dropped > 0 ? "（测试中被断开 " + dropped + " 个）" : "")
+                + "，消息大小：" + messageSize + " 字节，目标速率：" + rate + " 条/秒");
+        System.out.println(String.format("发送：%d 条（%.0f 条/秒）", sent, sent / seconds));
+        System.out.println(String.format("转发：应收 %d 条，实收 %d 条（%.0f 条/秒），丢失 %.2f%%",
+                expected, received, received / receiveSeconds,
+                expected == 0 ? 0.0 : 100.0 * (expected - Math.min(received, expected)) / expected));
+        System.out.println(String.format("延迟（微秒）：最小 %d，平均 %.1f，最大 %d",
+                histogram.min(), histogram.mean(), histogram.max()));
+        for (double percentile : PERCENTILES) {
+            System.out.println(String.format("  p%-7s %10d", trim(percentile), histogram.valueAtPercentile(percentile)));
+        }
+    }
+
+    private static String trim(double value) {
+        return value == (long) value ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    public static void main(String[] args) {
+        // 参数依次为：端口 客户端数 每秒消息数 消息字节数 测试秒数 预热秒数，均可省略
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENT_COUNT;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RATE;
+        int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MESSAGE_SIZE;
+        int duration = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_DURATION_SECONDS;
+        int warmup = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_WARMUP_SECONDS;
+        LoadGenerator generator = new LoadGenerator(DEFAULT_HOST, port, clientCount, rate, messageSize,
+                duration, warmup);
+        generator.start();
+    }
+}
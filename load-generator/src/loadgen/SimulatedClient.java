@@ -0,0 +1,138 @@
+package loadgen;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 一个模拟的聊天客户端，作为 attachment 挂在自己的 SelectionKey 上
+ * 所有方法只在负载生成器的线程中调用
+ */
+class SimulatedClient implements FrameDecoder.FrameHandler {
+
+    private final LoadGenerator generator;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    /** 切分服务端发来的帧 */
+    private final FrameDecoder decoder = new FrameDecoder();
+    /** 写不完的帧，在 OP_WRITE 就绪时继续发送 */
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /** 握手使用的昵称，连接建立后确定 */
+    private String nickname;
+    /** 服务端已回复昵称命令，说明已经为该连接服务、加入了默认房间 */
+    private boolean online = false;
+    private boolean closed = false;
+
+    SimulatedClient(LoadGenerator generator, Selector selector, InetSocketAddress address) throws IOException {
+        this.generator = generator;
+        this.channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        this.key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        channel.connect(address);
+    }
+
+    boolean isOnline() {
+        return online && !closed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 处理该连接的就绪事件
+     */
+    void handle() {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                generator.onConnected();
+                // 设置昵称作为握手：收到回复即说明服务端已为该连接服务
+                nickname = "lg-" + channel.socket().getLocalPort();
+                send(FrameCodec.encodeText(FrameCodec.TYPE_NICK, 0, 0, nickname, generator.charset()));
+                return;
+            }
+            if (key.isReadable() && decoder.read(channel, this) < 0) {
+                close();
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public boolean onFrame(Frame frame) {
+        if (frame.type() == FrameCodec.TYPE_NOTICE) {
+            // 昵称设置成功或失败的回复都带有该昵称，“服务器繁忙”之类的拒绝提示则没有
+            if (!online && nickname != null && frame.text(generator.charset()).endsWith(nickname)) {
+                online = true;
+                generator.onOnline();
+            }
+        } else if (frame.type() == FrameCodec.TYPE_MESSAGE && online) {
+            generator.onMessage(frame);
+        }
+        return !closed;
+    }
+
+    /**
+     * 发送一个编码好的帧，写不完的部分排队等待 OP_WRITE
+     */
+    void send(byte[] frame) {
+        if (closed) {
+            return;
+        }
+        outbound.offer(ByteBuffer.wrap(frame));
+        if (outbound.size() == 1) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer head = outbound.peekFirst();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    // 内核发送缓冲区已满
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.pollFirst();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        boolean wasOnline = isOnline();
+        closed = true;
+        outbound.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 已经关闭，无需处理
+        }
+        generator.onClosed(wasOnline);
+    }
+}
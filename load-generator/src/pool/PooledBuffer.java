@@ -0,0 +1,60 @@
+package pool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从 BufferPool 申请到的 Buffer，带引用计数
+ * 同一个 Buffer 被多处共享时（例如广播给多个客户端），每处 retain() 一次，用完各自 release()
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    /** 泄漏检测，未被采样时为 null */
+    private BufferPool.LeakTracker tracker;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    void track(BufferPool.LeakTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * 底层的直接内存 Buffer，release() 之后不能再使用
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        int old;
+        do {
+            old = refCnt.get();
+            if (old <= 0) {
+                throw new IllegalStateException("Buffer 已被释放");
+            }
+        } while (!refCnt.compareAndSet(old, old + 1));
+        return this;
+    }
+
+    /**
+     * 引用计数减一，归零时将 Buffer 归还到池中
+     * @return true：Buffer 已被归还
+     */
+    public boolean release() {
+        int remaining = refCnt.decrementAndGet();
+        if (remaining == 0) {
+            pool.recycle(buffer, tracker);
+            return true;
+        }
+        if (remaining < 0) {
+            throw new IllegalStateException("Buffer 被重复释放");
+        }
+        return false;
+    }
+}
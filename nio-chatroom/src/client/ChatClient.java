@@ -1,5 +1,8 @@
 package client;
 
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -27,18 +30,19 @@ public class ChatClient {
     /** 监听Channel的Selector */
     private Selector selector;
 
-    /** 缓冲区大小 */
-    private static final int BUFFER_SIZE = 1024;
-    /** 用于从通道读取数据的 Buffer */
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    /** 用于向通道写数据的 Buffer */
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-
     /** 客户端退出命令 */
     private static final String QUIT = "\\quit";
     /** 指定编解码方式 */
     private Charset charset = StandardCharsets.UTF_8;
 
+    /** 切分服务端发来的帧 */
+    private FrameDecoder decoder = new FrameDecoder();
+    /** 打印服务端发来的帧 */
+    private FrameDecoder.FrameHandler printer = frame -> {
+        System.out.println(FrameCodec.display(frame, charset));
+        return true;
+    };
+
     public ChatClient() {
         this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
     }
@@ -112,12 +116,10 @@ public class ChatClient {
 
         } else if (key.isReadable()) {  // 处理READ
             SocketChannel clientChannel = (SocketChannel) key.channel();
-            String msg = receive(clientChannel);
-            if (msg.isEmpty()) {
+            int count = decoder.read(clientChannel, printer);
+            if (count < 0) {
                 // 服务器异常
                 close(selector);
-            } else {
-                System.out.println(msg);
             }
         }
     }
@@ -132,9 +134,8 @@ public class ChatClient {
             return;
         }
 
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        wBuffer.flip();
+        // 命令与聊天消息都编码为二进制帧，服务端按帧头分发
+        ByteBuffer wBuffer = ByteBuffer.wrap(FrameCodec.fromInput(msg, charset));
         while (wBuffer.hasRemaining()) {
             client.write(wBuffer);
         }
@@ -144,19 +145,6 @@ public class ChatClient {
         }
     }
 
-    /**
-     * 读取服务端转发来的消息
-     * @param clientChannel 客户端channel
-     * @return 收到的消息
-     * @throws IOException
-     */
-    private String receive(SocketChannel clientChannel) throws IOException {
-        rBuffer.clear();
-        while (clientChannel.read(rBuffer) > 0);
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
-    }
-
     public static void main(String[] args) {
         ChatClient chatClient = new ChatClient();
         chatClient.start();
@@ -0,0 +1,312 @@
+package log;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志：调用线程只把日志放入环形缓冲区，由后台线程格式化并写到 LogSink
+ * 1. 缓冲区已满或超过每秒条数上限时直接丢弃，调用线程永远不会因为日志而阻塞
+ * 2. 聊天消息可以按 1/sampleRate 的比例采样，也可以只记录长度、不记录正文
+ * 3. 被丢弃的条数由后台线程汇总输出
+ *
+ * 多个线程可以同时写日志；每条日志先用 CAS 占用一个槽位，写完字段后再发布序号
+ */
+public class AsyncLogger {
+
+    /** 默认环形缓冲区容量（条数），必须是 2 的幂 */
+    public static final int DEFAULT_CAPACITY = 8192;
+    /** 默认每秒最多记录的条数 */
+    public static final int DEFAULT_MAX_PER_SECOND = 10000;
+
+    /** 后台线程无事可做时的休眠时间 */
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final LogSink sink;
+    private final Level level;
+    /** 聊天消息的采样比例：每 sampleRate 条记录 1 条，0 表示不记录聊天消息 */
+    private final int sampleRate;
+    /** 是否记录聊天消息的正文，关闭时只记录发送者和长度，转发路径不需要解码正文 */
+    private final boolean logBodies;
+    /** 每秒最多记录的条数，0 表示不限制 */
+    private final int maxPerSecond;
+
+    /** 环形缓冲区 */
+    private final Entry[] ring;
+    private final int mask;
+    /** 下一个可以占用的序号，由写日志的线程 CAS 递增 */
+    private final AtomicLong tail = new AtomicLong();
+    /** 后台线程下一个要读取的序号，只由后台线程修改 */
+    private volatile long head = 0;
+
+    /** 因缓冲区已满或超过速率上限被丢弃的条数，后台线程输出后清零 */
+    private final AtomicLong dropped = new AtomicLong();
+    /** 采样计数，多个线程同时递增时可能漏计，采样只需要近似比例，不使用原子操作 */
+    private int sampleCounter = 0;
+    /** 当前计数窗口（秒）及窗口内已记录的条数 */
+    private volatile long window = 0;
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    public AsyncLogger() {
+        this(new ConsoleSink(), Level.INFO, DEFAULT_CAPACITY, DEFAULT_MAX_PER_SECOND, 1, true);
+    }
+
+    /**
+     * @param sink 日志输出目标
+     * @param level 最低记录级别
+     * @param capacity 环形缓冲区容量，向上取整为 2 的幂
+     * @param maxPerSecond 每秒最多记录的条数，0 表示不限制
+     * @param sampleRate 聊天消息的采样比例，1 表示全部记录，0 表示不记录
+     * @param logBodies 是否记录聊天消息的正文
+     */
+    public AsyncLogger(LogSink sink, Level level, int capacity, int maxPerSecond, int sampleRate, boolean logBodies) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("非法的日志缓冲区容量: " + capacity);
+        }
+        this.sink = sink;
+        this.level = level;
+        this.maxPerSecond = Math.max(0, maxPerSecond);
+        this.sampleRate = Math.max(0, sampleRate);
+        this.logBodies = logBodies;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ring = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+        }
+        this.mask = size - 1;
+        this.consumer = new Thread(this::drain, "chat-logger");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * 按配置串创建，格式为逗号分隔的 key=value，例如 "level=INFO,sample=100,body=false"
+     * 支持 level、sample、body、capacity、rate；"quiet" 等同于 sample=0（不记录聊天消息）
+     */
+    public static AsyncLogger fromSpec(String spec) {
+        Level level = Level.INFO;
+        int capacity = DEFAULT_CAPACITY;
+        int maxPerSecond = DEFAULT_MAX_PER_SECOND;
+        int sampleRate = 1;
+        boolean logBodies = true;
+        for (String option : spec.split(",")) {
+            option = option.trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            if ("quiet".equals(option)) {
+                sampleRate = 0;
+                continue;
+            }
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("非法的日志配置: " + option);
+            }
+            String key = option.substring(0, eq).trim();
+            String value = option.substring(eq + 1).trim();
+            switch (key) {
+                case "level":
+                    level = Level.valueOf(value.toUpperCase());
+                    break;
+                case "sample":
+                    sampleRate = Integer.parseInt(value);
+                    break;
+                case "body":
+                    logBodies = Boolean.parseBoolean(value);
+                    break;
+                case "capacity":
+                    capacity = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    maxPerSecond = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知的日志配置: " + key);
+            }
+        }
+        return new AsyncLogger(new ConsoleSink(), level, capacity, maxPerSecond, sampleRate, logBodies);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    public void debug(String text) {
+        log(Level.DEBUG, text);
+    }
+
+    public void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    public void warn(String text) {
+        log(Level.WARN, text);
+    }
+
+    public void log(Level level, String text) {
+        if (isEnabled(level)) {
+            publish(level, text, null, null, 0);
+        }
+    }
+
+    /**
+     * 这条聊天消息是否需要记录，调用者只在返回 true 时才解码正文、调用 message()
+     */
+    public boolean sampleMessage() {
+        if (sampleRate == 0 || !isEnabled(Level.INFO)) {
+            return false;
+        }
+        return sampleRate == 1 || ++sampleCounter % sampleRate == 0;
+    }
+
+    public boolean logBodies() {
+        return logBodies;
+    }
+
+    /**
+     * 记录一条聊天消息，由后台线程拼接为 "发送者: 正文"
+     * @param sender 发送者的名称
+     * @param body 正文，logBodies() 为 false 时传 null，只记录长度
+     * @param length 正文的字节数
+     */
+    public void message(String sender, String body, int length) {
+        publish(Level.INFO, null, sender, body, length);
+    }
+
+    /**
+     * 累计被丢弃、尚未输出的条数
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void publish(Level level, String text, String sender, String body, int length) {
+        if (!running || !tryAcquire()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= ring.length) {
+                // 后台线程来不及输出，丢弃而不是等待
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) (sequence & mask)];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.text = text;
+        entry.sender = sender;
+        entry.body = body;
+        entry.length = length;
+        // 最后写入序号，后台线程看到序号后才会读取其他字段
+        entry.sequence = sequence;
+    }
+
+    /**
+     * 每秒条数限制，窗口切换时的竞争只会让个别日志多记或少记
+     */
+    private boolean tryAcquire() {
+        if (maxPerSecond == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        if (now != window) {
+            window = now;
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= maxPerSecond;
+    }
+
+    /**
+     * 后台线程：按序号依次取出日志写到 sink，队列取空时 flush 并短暂休眠
+     */
+    private void drain() {
+        long next = head;
+        while (running || next != tail.get()) {
+            Entry entry = ring[(int) (next & mask)];
+            if (entry.sequence != next) {
+                // 队列已空，或者该槽位已被占用但还没有写完
+                reportDropped();
+                sink.flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            sink.write(format(entry));
+            entry.clear();
+            head = ++next;
+        }
+        reportDropped();
+        sink.flush();
+    }
+
+    private void reportDropped() {
+        long count = dropped.getAndSet(0);
+        if (count > 0) {
+            sink.write(TIME_FORMAT.format(Instant.now()) + " " + Level.WARN + " 日志过多，已丢弃 " + count + " 条");
+        }
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder line = new StringBuilder(64)
+                .append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.time)))
+                .append(' ').append(entry.level).append(' ');
+        if (entry.sender == null) {
+            line.append(entry.text);
+        } else if (entry.body != null) {
+            line.append(entry.sender).append(": ").append(entry.body);
+        } else {
+            line.append(entry.sender).append(": (").append(entry.length).append(" 字节)");
+        }
+        return line.toString();
+    }
+
+    /**
+     * 输出缓冲区中剩余的日志后停止后台线程，之后的日志都会被丢弃
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 环形缓冲区中的一个槽位，重复使用
+     */
+    private static final class Entry {
+        /** 槽位中日志的序号，-1 表示尚未写入 */
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        String text;
+        String sender;
+        String body;
+        int length;
+
+        void clear() {
+            level = null;
+            text = null;
+            sender = null;
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package log;
+
+/**
+ * 输出到标准输出：攒满一批或队列取空时才调用一次 System.out.print()
+ * 每次输出时重新获取 System.out，System.setOut() 替换后的输出流同样生效
+ */
+public class ConsoleSink implements LogSink {
+
+    /** 缓冲区超过该长度时立即输出 */
+    private static final int BATCH_SIZE = 8192;
+
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE);
+
+    @Override
+    public void write(String line) {
+        batch.append(line).append(System.lineSeparator());
+        if (batch.length() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (batch.length() > 0) {
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+        }
+    }
+}
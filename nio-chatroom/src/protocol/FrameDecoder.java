@@ -0,0 +1,135 @@
+package protocol;
+
+import pool.BufferPool;
+import pool.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 二进制帧的增量解码器，每个连接各持有一个
+ * 一次读就绪事件可以解出多个帧，一个帧也可以跨越多次读就绪事件
+ * 解出的帧直接交给 FrameHandler，payload 是读缓冲区的视图，转发时不需要先复制到新数组
+ */
+public class FrameDecoder {
+
+    /**
+     * 处理解出的帧
+     */
+    public interface FrameHandler {
+        /**
+         * @param frame 只在本次回调中有效，需要保留时应复制其中的数据
+         * @return false：停止解码（例如连接已关闭），剩余的数据不再处理，之后不能再使用该解码器
+         */
+        boolean onFrame(Frame frame);
+    }
+
+    /** 读缓冲区初始大小 */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxPayloadLength;
+    /** 读缓冲区来源，为 null 时使用堆内存 */
+    private final BufferPool pool;
+
+    /** 读缓冲区，始终处于写模式，其中保存尚未凑成完整帧的字节 */
+    private ByteBuffer buffer;
+    /** buffer 来自 pool 时对应的 PooledBuffer */
+    private PooledBuffer pooled;
+
+    public FrameDecoder() {
+        this(FrameCodec.MAX_PAYLOAD_LENGTH, null);
+    }
+
+    public FrameDecoder(int maxPayloadLength, BufferPool pool) {
+        this.maxPayloadLength = maxPayloadLength;
+        this.pool = pool;
+        this.buffer = allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 从 channel 中读取当前所有可读的数据，并将其中完整的帧依次交给 handler
+     * @param channel 非阻塞的 channel
+     * @param handler 处理解出的帧
+     * @return 本次读取的字节数，对端关闭连接时返回 -1（此前已读到的完整帧仍会交给 handler）
+     * @throws IOException 读取失败，或帧头非法
+     */
+    public int read(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+        int total = 0;
+        while (true) {
+            int count = channel.read(writableBuffer());
+            if (count < 0) {
+                return -1;
+            }
+            if (count == 0) {
+                return total;
+            }
+            total += count;
+            if (!decode(handler)) {
+                return total;
+            }
+        }
+    }
+
+    /**
+     * 供异步读取使用的缓冲区，处于写模式，保证至少有 1 字节空位
+     * 缓冲区可能在两次调用之间被替换，每次读取前都需要重新获取
+     */
+    public ByteBuffer writableBuffer() {
+        if (!buffer.hasRemaining()) {
+            // 只有当前帧比缓冲区大时才会写满（decode 总会把完整的帧取走），按需扩容
+            PooledBuffer old = pooled;
+            ByteBuffer larger = allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+            if (old != null) {
+                old.release();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * 将 buffer 中完整的帧依次交给 handler，剩余的半个帧移动到 buffer 头部
+     * @return false：handler 要求停止解码
+     * @throws IOException 帧头非法
+     */
+    public boolean decode(FrameHandler handler) throws IOException {
+        buffer.flip();
+        while (buffer.remaining() >= FrameCodec.HEADER_LENGTH) {
+            int length = FrameCodec.payloadLength(buffer, maxPayloadLength);
+            if (buffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+                break;
+            }
+            if (!handler.onFrame(FrameCodec.read(buffer, length))) {
+                // handler 可能已经释放了本解码器，不能再访问 buffer
+                return false;
+            }
+        }
+        buffer.compact();
+        return true;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        if (pool == null || capacity > BufferPool.maxPooledCapacity()) {
+            pooled = null;
+            return ByteBuffer.allocate(capacity);
+        }
+        pooled = pool.acquire(capacity);
+        ByteBuffer allocated = pooled.buffer();
+        allocated.limit(allocated.capacity());
+        return allocated;
+    }
+
+    /**
+     * 归还读缓冲区，之后不能再调用 read()
+     */
+    public void release() {
+        if (pooled != null) {
+            pooled.release();
+            pooled = null;
+        }
+        buffer = null;
+    }
+}
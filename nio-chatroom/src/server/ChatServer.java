@@ -1,5 +1,11 @@
 package server;
 
+import log.AsyncLogger;
+import pool.BufferPool;
+import pool.PooledBuffer;
+import protocol.Frame;
+import protocol.FrameCodec;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -11,6 +17,8 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
 
@@ -19,29 +27,85 @@ public class ChatServer {
     /** 用户自定义的监听端口 */
     private int port;
 
+    /** 默认 worker 数量：与 CPU 核数一致 */
+    private static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * worker 数量
+     * 0：单 Reactor 模式，accept 与读写都在同一个线程、同一个 Selector 上完成
+     * N：主从 Reactor 模式，一个 acceptor Selector 将连接轮询分配给 N 个 worker Selector
+     */
+    private int workerCount;
+    /** 负责客户端读写的 worker */
+    private Worker[] workers;
+    /** 轮询分配连接时使用的下标，只在 accept 线程中访问 */
+    private int nextWorker = 0;
+
     /** 处理服务器端 IO 的通道 */
     private ServerSocketChannel server;
-    /** 监听 channel 上发生的事件和 channel 状态的变化 */
-    private Selector selector;
-
-    /** 缓冲区大小 */
-    private static final int BUFFER_SIZE = 1024;
-    /** 用于从通道读取数据的 Buffer */
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    /** 用于向通道写数据的 Buffer */
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-
-    /** 客户端退出命令 */
-    private static final String QUIT = "\\quit";
+    /** 主从模式下只监听 ACCEPT 事件的 Selector */
+    private Selector acceptor;
+
+    /** 默认高水位：客户端待发送数据超过该值时触发慢消费者策略 */
+    private static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+    /** 默认低水位：PAUSE_READING 策略下，待发送数据回落到该值以下时恢复读取 */
+    private static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+    private int highWatermark;
+    private int lowWatermark;
+    /** 慢消费者策略 */
+    private SlowConsumerPolicy slowConsumerPolicy;
+    /** 批量窗口（微秒）：0 表示每轮 select 循环结束时发送，大于 0 时类似 Nagle 算法，攒一段时间再发送 */
+    private long batchWindowMicros;
+    /** 异步日志，I/O 线程只把日志放入环形缓冲区，不直接写控制台 */
+    private AsyncLogger logger;
+
+    /** 默认房间，新上线的客户端都在该房间中，编号为 0 */
+    static final String DEFAULT_ROOM = "lobby";
+    /** 房间名 -> 房间编号，填写在转发帧的 roomId 中 */
+    private final ConcurrentHashMap<String, Integer> roomIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger();
+    /** 昵称最大长度 */
+    private static final int MAX_NICKNAME_LENGTH = 20;
+    /** 昵称 -> 连接，私信时直接定位接收者，不经过房间内的转发 */
+    private final ConcurrentHashMap<String, Connection> nicknames = new ConcurrentHashMap<>();
     /** 指定编解码方式 */
     private Charset charset = StandardCharsets.UTF_8;
+    /** 读缓冲区与广播消息使用的直接内存 Buffer 池 */
+    private BufferPool bufferPool = BufferPool.defaultPool();
 
     public ChatServer() {
-        this(DEFAULT_PORT);
+        this(DEFAULT_PORT, DEFAULT_WORKER_COUNT);
     }
 
     public ChatServer(int port) {
+        this(port, DEFAULT_WORKER_COUNT);
+    }
+
+    public ChatServer(int port, int workerCount) {
+        this(port, workerCount, DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK, SlowConsumerPolicy.DROP_OLDEST);
+    }
+
+    public ChatServer(int port, int workerCount, int lowWatermark, int highWatermark,
+                      SlowConsumerPolicy slowConsumerPolicy) {
+        this(port, workerCount, lowWatermark, highWatermark, slowConsumerPolicy, 0);
+    }
+
+    public ChatServer(int port, int workerCount, int lowWatermark, int highWatermark,
+                      SlowConsumerPolicy slowConsumerPolicy, long batchWindowMicros) {
+        this(port, workerCount, lowWatermark, highWatermark, slowConsumerPolicy, batchWindowMicros, new AsyncLogger());
+    }
+
+    public ChatServer(int port, int workerCount, int lowWatermark, int highWatermark,
+                      SlowConsumerPolicy slowConsumerPolicy, long batchWindowMicros, AsyncLogger logger) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("非法的水位设置: low=" + lowWatermark + ", high=" + highWatermark);
+        }
         this.port = port;
+        this.workerCount = Math.max(0, workerCount);
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.batchWindowMicros = Math.max(0, batchWindowMicros);
+        this.logger = logger;
     }
 
     /**
@@ -55,118 +119,228 @@ public class ChatServer {
             // 绑定监听端口
             server.socket().bind(new InetSocketAddress(port));
 
-            // 创建Selector
-            selector = Selector.open();
-            // 在selector上注册serverChannel的accept事件
-            server.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口：" + port + "...");
-
-            while (true) {
-                // select()方法为阻塞式调用，如果当前没有selector监听事件出现，则该方法阻塞（返回值为出现事件的数量）
-                selector.select();
-                // 获取所有被触发Channel的SelectionKey集合
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (SelectionKey key : selectionKeys) {
-                    // 处理被触发的事件
-                    handles(key);
+            if (workerCount == 0) {
+                // 单 Reactor：唯一的 worker 同时监听 ACCEPT 事件，并直接运行在当前线程上
+                workers = new Worker[] {new Worker(this, 0)};
+                server.register(workers[0].selector(), SelectionKey.OP_ACCEPT);
+                System.out.println("启动服务器，监听端口：" + port + "（单 Reactor 模式）...");
+                workers[0].run();
+            } else {
+                // 主从 Reactor：每个 worker 拥有自己的 Selector 和线程
+                workers = new Worker[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    workers[i] = new Worker(this, i);
+                    workers[i].start();
+                }
+                acceptor = Selector.open();
+                server.register(acceptor, SelectionKey.OP_ACCEPT);
+                System.out.println("启动服务器，监听端口：" + port + "（" + workerCount + " 个 worker）...");
+
+                while (true) {
+                    acceptor.select();
+                    Set<SelectionKey> selectionKeys = acceptor.selectedKeys();
+                    for (SelectionKey key : selectionKeys) {
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                        }
+                    }
+                    selectionKeys.clear();
                 }
-                selectionKeys.clear();
             }
 
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             // 关闭selector：解除注册，同时关闭对应的通道
-            close(selector);
+            close(acceptor);
+            if (workers != null) {
+                for (Worker worker : workers) {
+                    if (worker != null) {
+                        worker.shutdown();
+                    }
+                }
+            }
+            close(server);
         }
     }
 
     /**
-     * 需要处理两个事件：ACCEPT & READ
+     * ACCEPT事件 --- 和客户端建立了连接，并将其轮询分配给一个 worker
+     * @param serverChannel 服务端 channel
+     * @throws IOException
      */
-    private void handles(SelectionKey key) throws IOException {
-        // ACCEPT事件 --- 和客户端建立了连接
-        if (key.isAcceptable()) {
-            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-            // 获得连接进来的客户端的channel
-            SocketChannel clientChannel = serverChannel.accept();
-            // 转换为非阻塞式调用
-            clientChannel.configureBlocking(false);
-
-            // 注册该客户端channel的READ事件
-            clientChannel.register(selector, SelectionKey.OP_READ);
-            System.out.println(getClientName(clientChannel) + "已连接");
+    void accept(ServerSocketChannel serverChannel) throws IOException {
+        // 获得连接进来的客户端的channel，非阻塞模式下可能为null
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
         }
+        // 转换为非阻塞式调用
+        clientChannel.configureBlocking(false);
 
-        // READ事件 --- 客户端发送了消息
-        else if (key.isReadable()) {
-            SocketChannel clientChannel = (SocketChannel) key.channel();
-            String fwdMsg = receive(clientChannel);
-            if (fwdMsg.isEmpty() || readyToQuit(fwdMsg)) { // 客户端异常 or 客户端准备退出
-                // 取消注册该通道上的该事件
-                key.cancel();
-                // 更改状态后，强制返回selector，令其重新检测
-                selector.wakeup();
-                System.out.println(getClientName(clientChannel) + "已断开");
-            } else {
-                System.out.println(getClientName(clientChannel) + ":" + fwdMsg);
-                forwardMessage(clientChannel, fwdMsg);
+        Worker worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        worker.register(clientChannel);
+        logger.info(getClientName(clientChannel) + "已连接");
+    }
+
+    /**
+     * 转发消息给同一房间的其他客户端
+     * 当前 worker 直接写自己管理的连接，其他 worker 通过各自的任务队列 + wakeup() 交接，
+     * 任何线程都不会直接操作其他 worker 的 Selector 上的 key；没有该房间成员的 worker 直接跳过
+     * 消息只编码一次，所有接收者共享同一个 Buffer，各自持有一个只读视图
+     * @param from 接收到该消息的 worker
+     * @param sender 发来消息的客户端
+     * @param frame 编码好的消息，调用者持有的引用由调用者自己释放
+     */
+    void forwardMessage(Worker from, Connection sender, PooledBuffer frame) {
+        String room = sender.room();
+        for (Worker worker : workers) {
+            if (worker == from) {
+                worker.deliver(sender, room, frame);
+            } else if (worker.hasMembers(room)) {
+                // 交给其他 worker 期间需要保证 frame 不被归还
+                frame.retain();
+                worker.execute(() -> {
+                    worker.deliver(sender, room, frame);
+                    frame.release();
+                });
             }
         }
     }
 
     /**
-     * 读取客户端发来的消息
-     * @param clientChannel 客户端 channel
-     * @return 发来的消息
-     * @throws IOException
+     * 私信只交给接收者所在的 worker，不遍历任何房间
+     * @param sender 发来消息的客户端
+     * @param target 接收者的昵称
+     * @param frame 客户端发来的私信帧，标签为接收者，转发时换成发送者
+     * @return false：接收者不在线
      */
-    private String receive(SocketChannel clientChannel) throws IOException {
-        // 将rBuffer转为写模式（起到清空的作用）
-        rBuffer.clear();
-        // 从clientChannel中读取数据，写入rBuffer，直至channel中没有数据可读
-        while ((clientChannel.read(rBuffer)) > 0);
-        // 将rBuffer从写模式转换为读模式
-        rBuffer.flip();
-        // 使用utf8编码解码rBuffer，并转为字符串类型
-        return String.valueOf(charset.decode(rBuffer));
+    boolean forwardPrivate(Connection sender, String target, Frame frame) {
+        Connection receiver = nicknames.get(target);
+        if (receiver == null) {
+            return false;
+        }
+        PooledBuffer relay = encodeRelay(FrameCodec.TYPE_PRIVATE, sender, frame);
+        receiver.send(relay, sender);
+        relay.release();
+        return true;
     }
 
     /**
-     * 转发消息给其他客户端
-     * @param clientChannel 发来消息的客户端 channel
-     * @param fwdMsg 需要转发的消息
-     * @throws IOException
+     * 编码转发帧：标签换成发送者的名称，正文从 frame 中按字节复制，不经过字符串
+     * @return 从池中申请的直接内存 Buffer，处于读模式
      */
-    private void forwardMessage(SocketChannel clientChannel, String fwdMsg) throws IOException {
-        // keys()返回所有注册过的SelectionKey
-        for (SelectionKey key : selector.keys()) {
-            // key有效并且是客户端socket
-            if (key.isValid() && key.channel() instanceof SocketChannel) {
-                SocketChannel connectedClient = (SocketChannel) key.channel();
-                if (!connectedClient.equals(clientChannel)) {
-                    wBuffer.clear();
-                    // 将需要转发的消息写进wBuffer，注意使用utf8编码
-                    wBuffer.put(charset.encode(getClientName(clientChannel) + ":" + fwdMsg));
-                    // 将wBuffer从写入模式转换为读取模式
-                    wBuffer.flip();
-                    while (wBuffer.hasRemaining()) {
-                        connectedClient.write(wBuffer);
-                    }
-                }
-            }
+    PooledBuffer encodeRelay(byte type, Connection sender, Frame frame) {
+        byte[] label = sender.nameBytes();
+        int length = FrameCodec.labeledLength(label, frame.textLength());
+        PooledBuffer pooled = bufferPool.acquire(FrameCodec.HEADER_LENGTH + length);
+        ByteBuffer buffer = pooled.buffer();
+        FrameCodec.writeHeader(buffer, type, FrameCodec.FLAG_LABELED, sender.id(), sender.roomId(), length);
+        buffer.put((byte) label.length).put(label).put(frame.text());
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 编码一条系统提示
+     * @return 从池中申请的直接内存 Buffer，处于读模式
+     */
+    PooledBuffer encodeNotice(String text) {
+        byte[] payload = text.getBytes(charset);
+        PooledBuffer pooled = bufferPool.acquire(FrameCodec.HEADER_LENGTH + payload.length);
+        ByteBuffer buffer = pooled.buffer();
+        FrameCodec.writeHeader(buffer, FrameCodec.TYPE_NOTICE, (short) 0, 0, 0, payload.length);
+        buffer.put(payload);
+        buffer.flip();
+        return pooled;
+    }
+
+    /**
+     * 房间编号，第一次使用某个房间名时分配
+     */
+    int roomId(String room) {
+        if (DEFAULT_ROOM.equals(room)) {
+            return 0;
         }
+        return roomIds.computeIfAbsent(room, name -> nextRoomId.incrementAndGet());
     }
 
-    private String getClientName(SocketChannel client) {
-        return "客户端[" + client.socket().getPort() + "]";
+    /**
+     * 设置昵称
+     * @return false：昵称不合法或已被其他客户端占用
+     */
+    boolean changeNickname(Connection connection, String newName) {
+        if (newName.isEmpty() || newName.length() > MAX_NICKNAME_LENGTH || newName.contains(" ")) {
+            return false;
+        }
+        // putIfAbsent 是原子的，两个客户端同时抢同一个昵称时只有一个成功
+        Connection owner = nicknames.putIfAbsent(newName, connection);
+        if (owner != null && owner != connection) {
+            return false;
+        }
+        String oldName = connection.nickname();
+        connection.nickname(newName);
+        if (oldName != null && !oldName.equals(newName)) {
+            nicknames.remove(oldName, connection);
+        }
+        return true;
+    }
+
+    /**
+     * 客户端断开时释放其昵称
+     */
+    void releaseNickname(Connection connection) {
+        if (connection.nickname() != null) {
+            nicknames.remove(connection.nickname(), connection);
+        }
+    }
+
+    /**
+     * 房间所在的 worker：除默认房间外，每个房间按名称固定分配给一个 worker，
+     * 房间的成员都迁移到该 worker 上，热门房间之间互不影响
+     * @return 默认房间或单 Reactor 模式下返回 null，表示不迁移
+     */
+    Worker workerFor(String room) {
+        if (DEFAULT_ROOM.equals(room) || workers.length == 1) {
+            return null;
+        }
+        return workers[(room.hashCode() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    Charset charset() {
+        return charset;
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    int highWatermark() {
+        return highWatermark;
     }
 
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    int lowWatermark() {
+        return lowWatermark;
+    }
+
+    SlowConsumerPolicy slowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    long batchWindowMicros() {
+        return batchWindowMicros;
+    }
+
+    AsyncLogger logger() {
+        return logger;
+    }
+
+    String getClientName(SocketChannel client) {
+        return "客户端[" + client.socket().getPort() + "]";
     }
 
-    private void close (Closeable closeable) {
+    void close (Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
@@ -177,7 +351,17 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // 可选参数1：worker 数量，0 表示单 Reactor 模式，缺省为 CPU 核数
+        int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WORKER_COUNT;
+        // 可选参数2：慢消费者策略，缺省为 DROP_OLDEST
+        SlowConsumerPolicy policy = args.length > 1
+                ? SlowConsumerPolicy.valueOf(args[1]) : SlowConsumerPolicy.DROP_OLDEST;
+        // 可选参数3：批量窗口（微秒），缺省为 0，例如 1000 表示最多攒 1 毫秒再发送
+        long batchWindowMicros = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        // 可选参数4：日志配置，例如 "level=INFO,sample=100,body=false"，quiet 表示不记录聊天消息
+        AsyncLogger logger = args.length > 3 ? AsyncLogger.fromSpec(args[3]) : new AsyncLogger();
+        ChatServer chatServer = new ChatServer(DEFAULT_PORT, workerCount,
+                DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK, policy, batchWindowMicros, logger);
         chatServer.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,362 @@
+package server;
+
+import pool.PooledBuffer;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 一个客户端连接的状态，作为 attachment 挂在该连接的 SelectionKey 上
+ * 除 pauseReading() / resumeReading() 通过 worker 的任务队列调用外，所有方法只在所属 worker 的线程中调用
+ * 加入房间时连接可能迁移到房间所在的 worker，迁移后由新的 worker 负责
+ */
+class Connection {
+
+    private final ChatServer chatServer;
+    /** 管理该连接的 worker，迁移时由其他线程读取 */
+    private volatile Worker worker;
+    /** 该连接在 worker 的 Selector 上的 key */
+    private SelectionKey key;
+    /** 客户端 channel */
+    private final SocketChannel channel;
+    /** 该连接独享的读缓冲区及分帧状态 */
+    private final FrameDecoder decoder;
+    /** 客户端端口号，作为转发帧中的 senderId */
+    private final int id;
+
+    /** 待发送给该客户端的消息，写不完的部分在 OP_WRITE 就绪时继续发送 */
+    private final Deque<Pending> outbound = new ArrayDeque<>();
+    /** outbound 中尚未发送的字节数 */
+    private int queuedBytes = 0;
+    /** PAUSE_READING 策略下，因本连接过慢而被暂停读取的其他连接 */
+    private final Set<Connection> pausedProducers = new HashSet<>();
+    /** 本连接被其他连接暂停读取的次数，归零后才恢复读取 */
+    private int pauseCount = 0;
+    /** 是否已在 worker 的待发送列表中，避免一轮循环内重复登记 */
+    private boolean flushScheduled = false;
+    /** 当前所在的房间及其编号 */
+    private String room = ChatServer.DEFAULT_ROOM;
+    private int roomId = 0;
+    /** 昵称，没有设置时为 null；其他 worker 转发私信时会读取 */
+    private volatile String nickname;
+    /** 显示名称编码后的字节，作为转发帧的标签，只在名称变化时编码一次 */
+    private volatile byte[] nameBytes;
+
+    Connection(ChatServer chatServer, Worker worker, SelectionKey key) {
+        this.chatServer = chatServer;
+        this.worker = worker;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.decoder = new FrameDecoder(FrameCodec.MAX_PAYLOAD_LENGTH, chatServer.bufferPool());
+        this.id = channel.socket().getPort();
+        this.nameBytes = name().getBytes(chatServer.charset());
+    }
+
+    int id() {
+        return id;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    Worker worker() {
+        return worker;
+    }
+
+    String room() {
+        return room;
+    }
+
+    int roomId() {
+        return roomId;
+    }
+
+    void room(String room, int roomId) {
+        this.room = room;
+        this.roomId = roomId;
+    }
+
+    String nickname() {
+        return nickname;
+    }
+
+    void nickname(String nickname) {
+        this.nickname = nickname;
+        this.nameBytes = nickname.getBytes(chatServer.charset());
+    }
+
+    byte[] nameBytes() {
+        return nameBytes;
+    }
+
+    /**
+     * 显示名称：设置了昵称时使用昵称，否则使用端口号
+     */
+    String name() {
+        String nick = nickname;
+        return nick != null ? nick : chatServer.getClientName(channel);
+    }
+
+    /**
+     * 从任意线程向该连接发送一条消息：不在所属 worker 的线程中时交给所属 worker
+     * @param frame 编码好的消息，调用者持有的引用由调用者自己释放
+     * @param producer 发送该消息的客户端
+     */
+    void send(PooledBuffer frame, Connection producer) {
+        Worker owner = worker;
+        if (owner.inEventLoop()) {
+            enqueue(frame.buffer().asReadOnlyBuffer(), frame.retain(), producer);
+        } else {
+            // 交给其他 worker 期间需要保证 frame 不被归还；到达时连接可能又迁移了，再次检查
+            frame.retain();
+            owner.execute(() -> {
+                send(frame, producer);
+                frame.release();
+            });
+        }
+    }
+
+    /**
+     * 迁移到另一个 worker：在原 worker 的线程中调用，原 key 作废，由 target 在自己的线程中重新注册
+     * 尚未发送的消息、暂停状态都随连接一起迁移
+     */
+    void migrate(Worker target) {
+        key.cancel();
+        // 先把注册任务放入 target 的队列，再修改 worker，
+        // 这样之后按 worker 投递的暂停 / 恢复任务一定排在注册之后
+        target.execute(() -> target.adopt(this));
+        worker = target;
+    }
+
+    /**
+     * 迁移完成：在新 worker 的线程中调用
+     * @param newKey 该连接在新 worker 的 Selector 上的 key
+     */
+    void rebind(Worker target, SelectionKey newKey) {
+        worker = target;
+        key = newKey;
+        key.attach(this);
+        key.interestOps(pauseCount == 0 ? SelectionKey.OP_READ : 0);
+        // 原 worker 待发送列表中的登记已失效，在这里补发
+        flushScheduled = false;
+        if (!outbound.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * 读取客户端发来的帧
+     * @param handler 处理本次解出的完整帧，帧只在回调中有效
+     * @return 客户端关闭连接时返回 -1
+     * @throws IOException
+     */
+    int read(FrameDecoder.FrameHandler handler) throws IOException {
+        return decoder.read(channel, handler);
+    }
+
+    /**
+     * 将消息放入发送队列，由 worker 在本轮循环结束（或批量窗口到期）时统一发送；
+     * 超过高水位时按 SlowConsumerPolicy 处理
+     * @param buffer 需要发送的数据（读模式），通常是 owner 的一个视图
+     * @param owner buffer 所属的 PooledBuffer，调用者需要事先 retain()，由本连接负责 release()
+     * @param producer 发送该消息的客户端
+     * @return false：该连接已因过慢被断开
+     */
+    boolean enqueue(ByteBuffer buffer, PooledBuffer owner, Connection producer) {
+        if (!key.isValid()) {
+            release(owner);
+            return false;
+        }
+        int size = buffer.remaining();
+        if (queuedBytes + size > chatServer.highWatermark()) {
+            switch (chatServer.slowConsumerPolicy()) {
+                case DROP_OLDEST:
+                    dropOldest(size);
+                    break;
+                case DISCONNECT:
+                    release(owner);
+                    worker.disconnect(this);
+                    return false;
+                case PAUSE_READING:
+                    if (producer != null && producer != this && pausedProducers.add(producer)) {
+                        producer.worker().execute(producer::pauseReading);
+                    }
+                    break;
+            }
+        }
+        outbound.offer(new Pending(buffer, owner));
+        queuedBytes += size;
+        if (outbound.size() >= worker.gatherBuffers().length) {
+            // 已经攒够一次 gathering write 的消息，继续等待只会让队列越积越长
+            return flush();
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            worker.scheduleFlush(this);
+        }
+        return true;
+    }
+
+    /**
+     * 丢弃最早的消息，直到能放下 size 字节；已经发送了一部分的队首消息不能丢弃，否则客户端会收到残缺的消息
+     */
+    private void dropOldest(int size) {
+        while (queuedBytes + size > chatServer.highWatermark() && !outbound.isEmpty()) {
+            Pending oldest = outbound.peekFirst();
+            if (oldest.data.position() > 0) {
+                if (outbound.size() == 1) {
+                    return;
+                }
+                Pending partial = outbound.pollFirst();
+                discard(outbound.pollFirst());
+                outbound.offerFirst(partial);
+            } else {
+                discard(outbound.pollFirst());
+            }
+        }
+    }
+
+    private void discard(Pending pending) {
+        queuedBytes -= pending.data.remaining();
+        release(pending.owner);
+    }
+
+    private static void release(PooledBuffer owner) {
+        if (owner != null) {
+            owner.release();
+        }
+    }
+
+    /**
+     * 非阻塞地发送队列中的数据，写不完时注册 OP_WRITE，由 worker 在可写时再次调用
+     * 队列中的多条消息通过一次 gathering write 发送，减少系统调用次数
+     * @return false：发送失败，连接已被断开
+     */
+    boolean flush() {
+        if (!worker.inEventLoop()) {
+            // 连接已迁移到其他 worker，原 worker 上的登记作废
+            return true;
+        }
+        flushScheduled = false;
+        if (!key.isValid()) {
+            return false;
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0 && !key.isWritable()) {
+            // 仍在等待 OP_WRITE，此时写也写不进去
+            return true;
+        }
+        ByteBuffer[] gather = worker.gatherBuffers();
+        try {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (Pending pending : outbound) {
+                    if (count == gather.length) {
+                        break;
+                    }
+                    gather[count++] = pending.data;
+                }
+                queuedBytes -= channel.write(gather, 0, count);
+                // 释放已经完整发送的消息
+                while (!outbound.isEmpty() && !outbound.peekFirst().data.hasRemaining()) {
+                    release(outbound.pollFirst().owner);
+                }
+                if (gather[count - 1].hasRemaining()) {
+                    // 内核发送缓冲区已满，等待 OP_WRITE
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            worker.disconnect(this);
+            return false;
+        } finally {
+            // 不持有已发送消息的引用
+            Arrays.fill(gather, null);
+        }
+
+        if (outbound.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        if (queuedBytes <= chatServer.lowWatermark()) {
+            resumeProducers();
+        }
+        return true;
+    }
+
+    /**
+     * 停止监听本连接的 READ 事件（PAUSE_READING 策略）
+     */
+    void pauseReading() {
+        if (!worker.inEventLoop()) {
+            // 任务投递后连接发生了迁移，转交给新的 worker
+            worker.execute(this::pauseReading);
+            return;
+        }
+        if (key.isValid() && pauseCount++ == 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 恢复监听本连接的 READ 事件
+     */
+    void resumeReading() {
+        if (!worker.inEventLoop()) {
+            worker.execute(this::resumeReading);
+            return;
+        }
+        if (key.isValid() && pauseCount > 0 && --pauseCount == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeProducers() {
+        if (pausedProducers.isEmpty()) {
+            return;
+        }
+        for (Connection producer : pausedProducers) {
+            producer.worker().execute(producer::resumeReading);
+        }
+        pausedProducers.clear();
+    }
+
+    /**
+     * 释放该连接占用的资源，并恢复被它暂停的其他连接
+     */
+    void close() {
+        while (!outbound.isEmpty()) {
+            discard(outbound.pollFirst());
+        }
+        queuedBytes = 0;
+        resumeProducers();
+        key.cancel();
+        chatServer.close(channel);
+        decoder.release();
+    }
+
+    /**
+     * 发送队列中的一项
+     */
+    private static class Pending {
+        /** 本连接独享的视图，记录本连接的发送进度 */
+        final ByteBuffer data;
+        /** data 所属的 PooledBuffer，发送完成或丢弃时释放，可以为 null */
+        final PooledBuffer owner;
+
+        Pending(ByteBuffer data, PooledBuffer owner) {
+            this.data = data;
+            this.owner = owner;
+        }
+    }
+}
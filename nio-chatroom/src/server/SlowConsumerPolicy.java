@@ -0,0 +1,16 @@
+package server;
+
+/**
+ * 客户端待发送数据超过高水位时的处理策略
+ */
+public enum SlowConsumerPolicy {
+
+    /** 丢弃该客户端队列中最早的、尚未开始发送的消息 */
+    DROP_OLDEST,
+
+    /** 断开该客户端 */
+    DISCONNECT,
+
+    /** 暂停读取向该客户端发送消息的其他客户端，直到该客户端的队列回落到低水位 */
+    PAUSE_READING
+}
@@ -0,0 +1,396 @@
+package server;
+
+import log.AsyncLogger;
+import pool.PooledBuffer;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从 Reactor：拥有独立的 Selector 和线程，负责分配给它的客户端 channel 的读写
+ * 其他线程只能通过 execute() 提交任务，由该 worker 自己的线程执行
+ */
+class Worker implements Runnable, FrameDecoder.FrameHandler {
+
+    private final ChatServer chatServer;
+    private final int id;
+
+    /** 监听本 worker 管理的 channel 上发生的事件 */
+    private final Selector selector;
+    /** 其他线程交给本 worker 执行的任务（注册新连接、转发消息） */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** 运行本 worker 的线程 */
+    private volatile Thread thread;
+
+    /** 正在读取的连接，解出的帧交给 onFrame() 处理，只在本 worker 的线程中使用 */
+    private Connection reading;
+
+    /** 一次 gathering write 最多合并的消息数 */
+    private static final int MAX_GATHER = 64;
+    /** gathering write 使用的数组，只在本 worker 的线程中使用 */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+    /** 本轮循环中有新消息待发送的连接 */
+    private final List<Connection> pendingFlushes = new ArrayList<>();
+    /** 批量窗口：第一条待发送消息入队后最多再等待多久统一发送，0 表示每轮循环结束时立即发送 */
+    private final long batchWindowNanos;
+    /** pendingFlushes 中第一个连接登记的时间 */
+    private long firstPendingAt;
+
+    /**
+     * 房间 -> 本 worker 上的成员，只索引本 worker 管理的连接
+     * 成员集合只在本 worker 的线程中读写；其他线程只通过 hasMembers() 判断是否需要把消息交给本 worker
+     */
+    private final Map<String, Set<Connection>> rooms = new ConcurrentHashMap<>();
+    /** 投递消息时复制的成员列表：投递过程中可能断开连接、修改成员集合 */
+    private final List<Connection> receivers = new ArrayList<>();
+
+    Worker(ChatServer chatServer, int id) throws IOException {
+        this.chatServer = chatServer;
+        this.id = id;
+        this.selector = Selector.open();
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(chatServer.batchWindowMicros());
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * 在新线程中运行本 worker
+     */
+    void start() {
+        Thread t = new Thread(this, "chat-worker-" + id);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * 提交任务给本 worker 的线程执行；如果调用者不是本 worker 的线程，需要唤醒阻塞在 select() 上的 Selector
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 当前线程是否为本 worker 的线程
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 将新连接注册到本 worker 的 Selector 上
+     * register() 会与正在 select() 的线程竞争锁，因此交由本 worker 的线程自己完成
+     */
+    void register(SocketChannel clientChannel) {
+        execute(() -> {
+            try {
+                SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(chatServer, this, key);
+                key.attach(connection);
+                joinRoom(connection);
+            } catch (ClosedChannelException e) {
+                chatServer.close(clientChannel);
+            }
+        });
+    }
+
+    /**
+     * 接收从其他 worker 迁移过来的连接，在本 worker 的线程中执行
+     */
+    void adopt(Connection connection) {
+        try {
+            SelectionKey key = connection.channel().register(selector, 0);
+            connection.rebind(this, key);
+            joinRoom(connection);
+        } catch (ClosedChannelException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 本 worker 上是否有该房间的成员，可以在任意线程中调用
+     */
+    boolean hasMembers(String room) {
+        return rooms.containsKey(room);
+    }
+
+    private void joinRoom(Connection connection) {
+        rooms.computeIfAbsent(connection.room(), name -> new HashSet<>()).add(connection);
+    }
+
+    private void leaveRoom(Connection connection) {
+        Set<Connection> members = rooms.get(connection.room());
+        if (members != null && members.remove(connection) && members.isEmpty()) {
+            rooms.remove(connection.room());
+        }
+    }
+
+    /**
+     * 切换房间：更新本 worker 的房间索引，并回复一条提示
+     * 房间所在的 worker 不是本 worker 时，在本次读事件处理完后迁移连接
+     */
+    private void changeRoom(Connection connection, String room) {
+        if (room.isEmpty()) {
+            reply(connection, "房间名不能为空");
+            return;
+        }
+        if (!room.equals(connection.room())) {
+            leaveRoom(connection);
+            connection.room(room, chatServer.roomId(room));
+            joinRoom(connection);
+            chatServer.logger().info(chatServer.getClientName(connection.channel()) + "进入房间：" + room);
+        }
+        reply(connection, "已进入房间：" + room);
+    }
+
+    private void changeNickname(Connection connection, String nickname) {
+        if (chatServer.changeNickname(connection, nickname)) {
+            chatServer.logger().info(chatServer.getClientName(connection.channel()) + "设置昵称：" + nickname);
+            reply(connection, "昵称已设置为：" + nickname);
+        } else {
+            reply(connection, "昵称不可用：" + nickname);
+        }
+    }
+
+    /**
+     * 向本 worker 管理的一个客户端发送一条提示
+     */
+    private void reply(Connection connection, String text) {
+        PooledBuffer frame = chatServer.encodeNotice(text);
+        connection.enqueue(frame.buffer(), frame, null);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (selector.isOpen()) {
+                if (!tasks.isEmpty()) {
+                    // 上一轮发送时本线程自己提交的任务（例如恢复读取）不会唤醒 Selector，不能阻塞等待
+                    selector.selectNow();
+                } else if (pendingFlushes.isEmpty()) {
+                    selector.select();
+                } else {
+                    // 批量窗口未到期：最多等到窗口结束，期间到达的消息一起发送
+                    // select(timeout) 的精度为毫秒，不足 1 毫秒时按 1 毫秒等待
+                    long remaining = firstPendingAt + batchWindowNanos - System.nanoTime();
+                    if (remaining > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                // 获取所有被触发Channel的SelectionKey集合
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey key : selectionKeys) {
+                    try {
+                        handles(key);
+                    } catch (IOException e) {
+                        // 单个客户端出错时只关闭该客户端，不影响本 worker 上的其他连接
+                        if (key.attachment() instanceof Connection) {
+                            disconnect((Connection) key.attachment());
+                        } else {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                selectionKeys.clear();
+                runTasks();
+                if (!pendingFlushes.isEmpty() && System.nanoTime() - firstPendingAt >= batchWindowNanos) {
+                    flushPending();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            chatServer.close(selector);
+        }
+    }
+
+    /**
+     * 关闭本 worker 的 Selector
+     */
+    void shutdown() {
+        chatServer.close(selector);
+    }
+
+    /**
+     * 登记有新消息待发送的连接，在本轮循环结束（或批量窗口到期）时统一发送
+     * 这样一轮循环中发给同一连接的多条消息只需一次 gathering write
+     */
+    void scheduleFlush(Connection connection) {
+        if (pendingFlushes.isEmpty()) {
+            firstPendingAt = System.nanoTime();
+        }
+        pendingFlushes.add(connection);
+    }
+
+    private void flushPending() {
+        // flush() 中断开连接不会再登记新的连接，可以直接按下标遍历
+        for (int i = 0; i < pendingFlushes.size(); i++) {
+            pendingFlushes.get(i).flush();
+        }
+        pendingFlushes.clear();
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 需要处理三个事件：ACCEPT（仅单 Reactor 模式） & WRITE & READ
+     */
+    private void handles(SelectionKey key) throws IOException {
+        if (key.isAcceptable()) {
+            chatServer.accept((ServerSocketChannel) key.channel());
+            return;
+        }
+
+        Connection connection = (Connection) key.attachment();
+
+        // WRITE事件 --- 客户端的发送缓冲区有空位，继续发送队列中的数据
+        if (key.isValid() && key.isWritable()) {
+            connection.flush();
+        }
+
+        // READ事件 --- 客户端发送了消息
+        if (key.isValid() && key.isReadable()) {
+            reading = connection;
+            int count;
+            try {
+                count = connection.read(this);
+            } finally {
+                reading = null;
+            }
+            if (!connection.channel().isOpen()) { // 处理帧的过程中已断开（例如客户端退出）
+                return;
+            }
+            if (count < 0) { // 客户端异常
+                disconnect(connection);
+                return;
+            }
+            // 同一房间的连接集中到同一个 worker 上，房间内的转发无需跨线程交接
+            Worker target = chatServer.workerFor(connection.room());
+            if (target != null && target != this && key.isValid()) {
+                leaveRoom(connection);
+                connection.migrate(target);
+            }
+        }
+    }
+
+    /**
+     * 处理 reading 发来的一帧：按帧头中的类型分发
+     * 聊天消息的正文直接从读缓冲区复制到转发帧中，只有打印日志时才解码
+     * @return false：连接已断开，停止解码
+     */
+    @Override
+    public boolean onFrame(Frame frame) {
+        Connection connection = reading;
+        Charset charset = chatServer.charset();
+        if (FrameCodec.isOversized(frame)) {
+            // 换上发送者的标签后超过帧长度上限，接收者无法解码
+            reply(connection, "消息过长，最多 " + FrameCodec.MAX_TEXT_LENGTH + " 字节，未发送");
+            return connection.channel().isOpen();
+        }
+        switch (frame.type()) {
+            case FrameCodec.TYPE_QUIT: // 客户端准备退出
+                disconnect(connection);
+                return false;
+            case FrameCodec.TYPE_JOIN: // 加入房间
+                changeRoom(connection, frame.text(charset));
+                break;
+            case FrameCodec.TYPE_LEAVE: // 回到默认房间
+                changeRoom(connection, ChatServer.DEFAULT_ROOM);
+                break;
+            case FrameCodec.TYPE_NICK: // 设置昵称
+                changeNickname(connection, frame.text(charset));
+                break;
+            case FrameCodec.TYPE_PRIVATE: // 私信只发给指定用户，只需解码标签中的接收者
+                if (frame.isLabeled()) {
+                    String target = frame.label(charset);
+                    if (!chatServer.forwardPrivate(connection, target, frame)) {
+                        reply(connection, "用户不在线：" + target);
+                    }
+                }
+                break;
+            case FrameCodec.TYPE_MESSAGE:
+                AsyncLogger logger = chatServer.logger();
+                if (logger.sampleMessage()) {
+                    // 只有需要记录正文时才解码
+                    logger.message(connection.name(), logger.logBodies() ? frame.text(charset) : null, frame.textLength());
+                }
+                // 换上发送者的标签后转发，正文按字节复制
+                PooledBuffer relay = chatServer.encodeRelay(FrameCodec.TYPE_MESSAGE, connection, frame);
+                chatServer.forwardMessage(this, connection, relay);
+                relay.release();
+                break;
+            default:
+                // 忽略不认识的帧类型，便于以后扩展协议
+                break;
+        }
+        // 回复自己时也可能因慢消费者策略被断开
+        return connection.channel().isOpen();
+    }
+
+    /**
+     * 断开客户端，只能在本 worker 的线程中调用
+     */
+    void disconnect(Connection connection) {
+        leaveRoom(connection);
+        chatServer.releaseNickname(connection);
+        if (connection.channel().isOpen()) {
+            chatServer.logger().info(chatServer.getClientName(connection.channel()) + "已断开");
+        }
+        connection.close();
+    }
+
+    /**
+     * 将消息放入本 worker 上同一房间的其他客户端的发送队列，只能在本 worker 的线程中调用
+     * @param sender 发来消息的客户端
+     * @param room 消息所属的房间
+     * @param frame 编码好的消息，所有接收者共享，不能修改其 position / limit
+     */
+    void deliver(Connection sender, String room, PooledBuffer frame) {
+        Set<Connection> members = rooms.get(room);
+        if (members == null) {
+            return;
+        }
+        receivers.addAll(members);
+        for (Connection receiver : receivers) {
+            if (receiver != sender) {
+                // 每个接收者拥有独立的只读视图和 position，底层数据不复制，发送完成后由接收者释放
+                receiver.enqueue(frame.buffer().asReadOnlyBuffer(), frame.retain(), sender);
+            }
+        }
+        receivers.clear();
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 根据文件大小与所在文件系统自动选择拷贝方式
+ *
+ * 按 (文件系统类型, 大小区间, 拷贝方式) 记录吞吐量的指数移动平均值，每次拷贝选择当前最快的方式：
+ * 1. 吞吐量来自 calibrate() 的测量，或者拷贝时的实际观测，保存到文件中，下次启动时读取；
+ *    拷贝时每 SAVE_INTERVAL 次观测保存一次，退出前可以调用 save() 保存剩余的部分
+ * 2. 每个区间每 EXPLORE_INTERVAL 次拷贝轮流尝试一次其他方式，使记录随负载与设备的变化而更新
+ * 3. 还没有记录时使用默认选择：小文件用 nioBufferCopy，其余用 nioTransferCopy
+ * 可以被多个线程同时使用
+ */
+public class AdaptiveCopyRunner implements FileCopyRunner {
+
+    /** 各大小区间的上限（含），最后一个区间没有上限 */
+    private static final long[] SIZE_CLASS_LIMITS = {64 * 1024, 1024 * 1024, 16 * 1024 * 1024, 256 * 1024 * 1024};
+    /** 校准时各大小区间使用的文件大小 */
+    private static final long[] CALIBRATION_SIZES = {16 * 1024, 512 * 1024, 8 * 1024 * 1024,
+            128 * 1024 * 1024, 512 * 1024 * 1024};
+    /** 校准时每种方式测量的次数 */
+    private static final int CALIBRATION_ROUNDS = 3;
+    /** 每个区间每隔多少次拷贝尝试一次其他方式 */
+    private static final int EXPLORE_INTERVAL = 16;
+    /** 新观测值的权重 */
+    private static final double EWMA_ALPHA = 0.2;
+    /** 拷贝时每记录多少次吞吐量保存一次 */
+    private static final int SAVE_INTERVAL = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MMAP_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /** 可选的拷贝方式，按名称区分 */
+    private final Map<String, FileCopyRunner> strategies = new LinkedHashMap<>();
+    private final String[] names;
+    /** "文件系统.区间.方式" -> 吞吐量（MB/s） */
+    private final Map<String, Double> throughput = new ConcurrentHashMap<>();
+    /** "文件系统.区间" -> 拷贝次数，用于决定何时尝试其他方式 */
+    private final Map<String, AtomicLong> copies = new ConcurrentHashMap<>();
+    /** 目录 -> 所在文件系统的类型，查询文件系统需要读取挂载表，结果缓存起来 */
+    private final Map<Path, String> fileSystems = new ConcurrentHashMap<>();
+    /** 拷贝时记录吞吐量的次数，用于决定何时保存 */
+    private final AtomicLong observations = new AtomicLong();
+    /** 保存吞吐量记录的文件，为 null 时不保存 */
+    private final File stateFile;
+
+    /**
+     * @param stateFile 保存吞吐量记录的文件，存在时读取其中的记录；为 null 时只在内存中学习
+     */
+    public AdaptiveCopyRunner(File stateFile) throws IOException {
+        this.stateFile = stateFile;
+        strategies.put("bufferedStreamCopy", FileCopyDemo.bufferedStreamCopy(BUFFER_SIZE));
+        strategies.put("nioBufferCopy", FileCopyDemo.nioBufferCopy(BUFFER_SIZE));
+        strategies.put("nioTransferCopy", FileCopyDemo.nioTransferCopy());
+        strategies.put("mmapCopy", FileCopyDemo.mmapCopy(MMAP_WINDOW_SIZE, ForcePolicy.NONE));
+        names = strategies.keySet().toArray(new String[0]);
+        if (stateFile != null && stateFile.exists()) {
+            load();
+        }
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        long size = source.length();
+        String key = fileSystem(target) + "." + sizeClass(size);
+        String strategy = choose(key);
+
+        // FileCopyRunner 只打印异常，只能通过目标文件长度判断是否成功；
+        // 先删除旧的目标文件，否则拷贝提前失败时长度仍可能一致，被记成一次很快的拷贝
+        target.delete();
+        long start = System.nanoTime();
+        strategies.get(strategy).copyFile(source, target);
+        long elapsed = System.nanoTime() - start;
+        if (target.isFile() && target.length() == size) {
+            observe(key + "." + strategy, size, elapsed);
+            if (observations.incrementAndGet() % SAVE_INTERVAL == 0) {
+                try {
+                    save();
+                } catch (IOException e) {
+                    // 保存失败不影响拷贝，下次再试
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "adaptiveCopy";
+    }
+
+    /**
+     * 选择拷贝方式：通常选择吞吐量最高的，每隔 EXPLORE_INTERVAL 次轮流尝试一次其他方式
+     * @param key "文件系统.区间"
+     */
+    private String choose(String key) {
+        long count = copies.computeIfAbsent(key, k -> new AtomicLong()).getAndIncrement();
+        String best = null;
+        double bestThroughput = 0;
+        for (String name : names) {
+            Double value = throughput.get(key + "." + name);
+            if (value != null && value > bestThroughput) {
+                best = name;
+                bestThroughput = value;
+            }
+        }
+        if (best == null) {
+            return defaultStrategy(key);
+        }
+        if (count % EXPLORE_INTERVAL == EXPLORE_INTERVAL - 1) {
+            return names[(int) (count / EXPLORE_INTERVAL % names.length)];
+        }
+        return best;
+    }
+
+    private String defaultStrategy(String key) {
+        return key.endsWith("." + sizeClassName(0)) ? "nioBufferCopy" : "nioTransferCopy";
+    }
+
+    /**
+     * 记录一次拷贝的吞吐量
+     */
+    private void observe(String key, long size, long nanos) {
+        double observed = size / (1024.0 * 1024) / (Math.max(nanos, 1) / 1e9);
+        throughput.merge(key, observed, (old, value) -> old + EWMA_ALPHA * (value - old));
+    }
+
+    /**
+     * 在 dir 中生成各区间的样本文件，测量每种方式的吞吐量，结果覆盖已有的记录并保存
+     * dir 应该与实际拷贝的目标位于同一个文件系统
+     * @param maxSize 只测量不超过该大小的样本，用于缩短校准时间
+     */
+    public void calibrate(File dir, long maxSize) throws IOException {
+        String fileSystem = fileSystem(new File(dir, "calibration"));
+        File source = new File(dir, "adaptive-calibration-source");
+        File target = new File(dir, "adaptive-calibration-target");
+        try {
+            for (long size : CALIBRATION_SIZES) {
+                if (size > maxSize) {
+                    continue;
+                }
+                FileCopyBenchmark.generate(source, size);
+                for (Map.Entry<String, FileCopyRunner> entry : strategies.entrySet()) {
+                    // 第一次拷贝用于预热
+                    entry.getValue().copyFile(source, target);
+                    long elapsed = 0;
+                    for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+                        target.delete();
+                        long start = System.nanoTime();
+                        entry.getValue().copyFile(source, target);
+                        elapsed += System.nanoTime() - start;
+                    }
+                    target.delete();
+                    String key = fileSystem + "." + sizeClass(size) + "." + entry.getKey();
+                    throughput.remove(key);
+                    observe(key, size * CALIBRATION_ROUNDS, elapsed);
+                }
+            }
+        } finally {
+            source.delete();
+            target.delete();
+        }
+        save();
+    }
+
+    /**
+     * 打印各文件系统、各区间当前选择的方式及其吞吐量
+     */
+    public void printTable() {
+        Map<String, String> best = new TreeMap<>();
+        for (Map.Entry<String, Double> entry : throughput.entrySet()) {
+            String key = entry.getKey();
+            String group = key.substring(0, key.lastIndexOf('.'));
+            String current = best.get(group);
+            if (current == null || throughput.get(group + "." + current) < entry.getValue()) {
+                best.put(group, key.substring(key.lastIndexOf('.') + 1));
+            }
+        }
+        for (Map.Entry<String, String> entry : best.entrySet()) {
+            System.out.println(String.format("%-24s %-20s %10.1f MB/s", entry.getKey(), entry.getValue(),
+                    throughput.get(entry.getKey() + "." + entry.getValue())));
+        }
+    }
+
+    /**
+     * 将吞吐量记录保存到 stateFile
+     */
+    public synchronized void save() throws IOException {
+        if (stateFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : throughput.entrySet()) {
+            // 固定使用 "." 作为小数点，与 Double.parseDouble 一致
+            properties.setProperty(entry.getKey(), String.format(Locale.ROOT, "%.1f", entry.getValue()));
+        }
+        try (OutputStream out = new FileOutputStream(stateFile)) {
+            properties.store(out, "adaptive copy throughput (MB/s), key: fileSystem.sizeClass.strategy");
+        }
+    }
+
+    private void load() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            properties.load(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String strategy = key.substring(key.lastIndexOf('.') + 1);
+            if (!strategies.containsKey(strategy)) {
+                continue;
+            }
+            try {
+                throughput.put(key, Double.parseDouble(properties.getProperty(key)));
+            } catch (NumberFormatException e) {
+                // 文件被损坏或手工改错时跳过该项，重新学习
+            }
+        }
+    }
+
+    /**
+     * 目标文件所在文件系统的类型，例如 ext4、xfs、tmpfs，无法确定时返回 unknown
+     */
+    private String fileSystem(File target) {
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return "unknown";
+        }
+        return fileSystems.computeIfAbsent(parent.toPath(), dir -> {
+            try {
+                // 类型中可能含有 '.'（例如 fuse.sshfs），替换掉以免与 key 的分隔符混淆
+                return Files.getFileStore(dir).type().replace('.', '_');
+            } catch (IOException e) {
+                return "unknown";
+            }
+        });
+    }
+
+    private static String sizeClass(long size) {
+        for (int i = 0; i < SIZE_CLASS_LIMITS.length; i++) {
+            if (size <= SIZE_CLASS_LIMITS[i]) {
+                return sizeClassName(i);
+            }
+        }
+        return sizeClassName(SIZE_CLASS_LIMITS.length);
+    }
+
+    /**
+     * 区间名称：上限，例如 le64K；最后一个区间为 gt256M
+     */
+    private static String sizeClassName(int index) {
+        if (index < SIZE_CLASS_LIMITS.length) {
+            return "le" + FileCopyBenchmark.formatSize(SIZE_CLASS_LIMITS[index]);
+        }
+        return "gt" + FileCopyBenchmark.formatSize(SIZE_CLASS_LIMITS[SIZE_CLASS_LIMITS.length - 1]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // 参数1：校准使用的目录，应与实际拷贝的目标位于同一文件系统；参数2：样本文件的最大大小，默认 128M
+        // 结果保存在用户目录下的 .file-copy-adaptive.properties 中
+        File dir = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+        long maxSize = args.length > 1 ? FileCopyBenchmark.parseSize(args[1]) : 128L * 1024 * 1024;
+        AdaptiveCopyRunner runner = new AdaptiveCopyRunner(defaultStateFile());
+        runner.calibrate(dir, maxSize);
+        runner.printTable();
+    }
+
+    /**
+     * 默认的吞吐量记录文件
+     */
+    public static File defaultStateFile() {
+        return new File(System.getProperty("user.home"), ".file-copy-adaptive.properties");
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 拷贝过程的回调，在执行拷贝的线程中调用，不应执行耗时操作
+ * progress 在拷贝过程中会被继续修改，需要保留数据时应复制其中的值
+ */
+public interface CopyListener {
+
+    /**
+     * 开始拷贝
+     */
+    default void onStart(File source, File target, CopyProgress progress) {
+    }
+
+    /**
+     * 拷贝过程中定期调用，间隔见 InstrumentedCopyRunner
+     */
+    default void onProgress(File source, File target, CopyProgress progress) {
+    }
+
+    /**
+     * 拷贝成功
+     */
+    default void onComplete(File source, File target, CopyProgress progress) {
+    }
+
+    /**
+     * 拷贝失败，progress 中是失败前的进度
+     */
+    default void onFailure(File source, File target, CopyProgress progress, IOException cause) {
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 拷贝指标的汇总，作为 CopyListener 注册到 InstrumentedCopyRunner 上
+ * 按文件系统（挂载点与设备）分别累计，便于找出拖慢整体的磁盘：
+ * 1. read 计入源文件所在的文件系统，write 计入目标文件所在的文件系统
+ * 2. transferTo 在内核中同时完成读写，无法拆分，单独统计，计入源与目标两个文件系统
+ * 3. 拷贝次数、字节数、耗时计入源与目标两个文件系统（同一文件系统只计一次）
+ * 可以被多个线程同时使用
+ */
+public class CopyMetrics implements CopyListener {
+
+    /** 文件系统 -> 该文件系统上的累计指标 */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /** 目录 -> 所在文件系统，查询文件系统需要读取挂载表，结果缓存起来 */
+    private final Map<Path, String> fileSystems = new ConcurrentHashMap<>();
+
+    @Override
+    public void onComplete(File source, File target, CopyProgress progress) {
+        record(source, target, progress, false);
+    }
+
+    @Override
+    public void onFailure(File source, File target, CopyProgress progress, IOException cause) {
+        record(source, target, progress, true);
+    }
+
+    private void record(File source, File target, CopyProgress progress, boolean failed) {
+        Entry in = entry(source);
+        Entry out = entry(target);
+        in.recordCopy(progress, failed);
+        in.recordRead(progress);
+        in.recordTransfer(progress);
+        if (out != in) {
+            out.recordCopy(progress, failed);
+            out.recordTransfer(progress);
+        }
+        out.recordWrite(progress);
+    }
+
+    /**
+     * 各文件系统的累计指标
+     */
+    public Map<String, Entry> entries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * 打印各文件系统的累计指标，平均吞吐量低的排在前面
+     */
+    public void report() {
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((a, b) -> Double.compare(a.getValue().averageThroughput(), b.getValue().averageThroughput()));
+        System.out.println(String.format("%-32s %8s %6s %14s %10s %10s %10s %10s %10s %10s %12s",
+                "fileSystem", "files", "fail", "bytes", "MB/s", "reads", "read(ms)", "writes", "write(ms)",
+                "transfers", "transfer(ms)"));
+        for (Map.Entry<String, Entry> item : sorted) {
+            Entry entry = item.getValue();
+            System.out.println(String.format("%-32s %8d %6d %14d %10.1f %10d %10.1f %10d %10.1f %10d %12.1f",
+                    item.getKey(), entry.files(), entry.failures(), entry.bytes(), entry.averageThroughput(),
+                    entry.readCalls(), entry.readNanos() / 1e6, entry.writeCalls(), entry.writeNanos() / 1e6,
+                    entry.transferCalls(), entry.transferNanos() / 1e6));
+        }
+    }
+
+    private Entry entry(File file) {
+        return entries.computeIfAbsent(fileSystem(file), key -> new Entry());
+    }
+
+    private String fileSystem(File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return "unknown";
+        }
+        return fileSystems.computeIfAbsent(parent.toPath(), dir -> {
+            try {
+                // 例如 "/data (/dev/nvme0n1p1)"
+                return Files.getFileStore(dir).toString();
+            } catch (IOException e) {
+                return "unknown";
+            }
+        });
+    }
+
+    /**
+     * 一个文件系统上的累计指标
+     */
+    public static class Entry {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder readCalls = new LongAdder();
+        private final LongAdder writeCalls = new LongAdder();
+        private final LongAdder readNanos = new LongAdder();
+        private final LongAdder writeNanos = new LongAdder();
+        private final LongAdder transferCalls = new LongAdder();
+        private final LongAdder transferNanos = new LongAdder();
+
+        void recordCopy(CopyProgress progress, boolean failed) {
+            files.increment();
+            if (failed) {
+                failures.increment();
+            }
+            bytes.add(progress.bytesCopied());
+            nanos.add(progress.elapsedNanos());
+        }
+
+        void recordRead(CopyProgress progress) {
+            readCalls.add(progress.readCalls());
+            readNanos.add(progress.readNanos());
+        }
+
+        void recordWrite(CopyProgress progress) {
+            writeCalls.add(progress.writeCalls());
+            writeNanos.add(progress.writeNanos());
+        }
+
+        void recordTransfer(CopyProgress progress) {
+            transferCalls.add(progress.transferCalls());
+            transferNanos.add(progress.transferNanos());
+        }
+
+        public long files() {
+            return files.sum();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long readCalls() {
+            return readCalls.sum();
+        }
+
+        public long writeCalls() {
+            return writeCalls.sum();
+        }
+
+        public long readNanos() {
+            return readNanos.sum();
+        }
+
+        public long writeNanos() {
+            return writeNanos.sum();
+        }
+
+        public long transferCalls() {
+            return transferCalls.sum();
+        }
+
+        public long transferNanos() {
+            return transferNanos.sum();
+        }
+
+        /**
+         * 平均吞吐量（MB/s）：总字节数除以各次拷贝耗时之和，并行拷贝时低于实际的总吞吐量
+         */
+        public double averageThroughput() {
+            return CopyProgress.throughput(bytes(), nanos.sum());
+        }
+    }
+}
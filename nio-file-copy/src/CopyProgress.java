@@ -0,0 +1,116 @@
+/**
+ * 一次拷贝的进度与统计
+ * 由执行拷贝的线程更新，其他线程读取时只能得到近似值
+ */
+public class CopyProgress {
+
+    /** 文件总字节数 */
+    final long totalBytes;
+    final long startNanos = System.nanoTime();
+    long bytesCopied = 0;
+    /** read / write / transferTo 各自的调用次数，每次调用对应一次系统调用 */
+    long readCalls = 0;
+    long writeCalls = 0;
+    long transferCalls = 0;
+    /** 花在 read / write / transferTo 中的时间 */
+    long readNanos = 0;
+    long writeNanos = 0;
+    long transferNanos = 0;
+    /** 结束时间，拷贝未结束时为 0 */
+    long endNanos = 0;
+
+    /** 上一次报告进度时的字节数与时间，用于计算瞬时吞吐量 */
+    private long lastBytes = 0;
+    private long lastNanos = startNanos;
+    private double instantThroughput = 0;
+
+    CopyProgress(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public long bytesCopied() {
+        return bytesCopied;
+    }
+
+    public long readCalls() {
+        return readCalls;
+    }
+
+    public long writeCalls() {
+        return writeCalls;
+    }
+
+    public long transferCalls() {
+        return transferCalls;
+    }
+
+    public long readNanos() {
+        return readNanos;
+    }
+
+    public long writeNanos() {
+        return writeNanos;
+    }
+
+    public long transferNanos() {
+        return transferNanos;
+    }
+
+    /**
+     * 已用时间，拷贝结束后为总耗时
+     */
+    public long elapsedNanos() {
+        return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * 平均吞吐量（MB/s）
+     */
+    public double averageThroughput() {
+        return throughput(bytesCopied, elapsedNanos());
+    }
+
+    /**
+     * 最近一个报告间隔内的吞吐量（MB/s）
+     */
+    public double instantThroughput() {
+        return instantThroughput;
+    }
+
+    /**
+     * 完成的比例，0 ~ 1
+     */
+    public double fraction() {
+        return totalBytes == 0 ? 1 : (double) bytesCopied / totalBytes;
+    }
+
+    /**
+     * 开始一个新的报告间隔，更新瞬时吞吐量
+     */
+    void mark(long now) {
+        instantThroughput = throughput(bytesCopied - lastBytes, now - lastNanos);
+        lastBytes = bytesCopied;
+        lastNanos = now;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+        mark(endNanos);
+    }
+
+    static double throughput(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : bytes / (1024.0 * 1024) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f%%，%d/%d 字节，平均 %.1f MB/s，瞬时 %.1f MB/s，"
+                        + "read %d 次 %.1fms，write %d 次 %.1fms，transferTo %d 次 %.1fms",
+                fraction() * 100, bytesCopied, totalBytes, averageThroughput(), instantThroughput,
+                readCalls, readNanos / 1e6, writeCalls, writeNanos / 1e6, transferCalls, transferNanos / 1e6);
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * FileCopyRunner 的基准测试，做法参考 JMH：
+ * 1. 在临时目录中生成各种大小的源文件，对每种方式、文件大小、缓冲区大小的组合分别测试
+ * 2. 先预热若干轮，让 JIT 编译完成，再测量若干轮，每轮至少持续 ITERATION_MILLIS，每次拷贝后删除目标文件
+ * 3. 报告吞吐量的平均值及 99.9% 置信区间（Student t 分布），以及每次拷贝在当前线程上分配的字节数与 GC 次数、耗时
+ * 源文件写入后会留在页缓存中，测得的是读缓存、写页缓存的速度，不包括等待磁盘落盘的时间
+ */
+public class FileCopyBenchmark {
+
+    /** 每轮的最短时间 */
+    private static final long ITERATION_MILLIS = 500;
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+    private static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+    /** 生成源文件时每次写入的字节数 */
+    private static final int FILL_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * 99.9% 双侧置信区间的 t 分布分位数，下标为自由度，自由度超过 30 时近似为正态分布
+     */
+    private static final double[] T_999 = {Double.NaN,
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+    private static final double Z_999 = 3.291;
+
+    private final long[] fileSizes;
+    private final long[] bufferSizes;
+    private int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+    private int measurementIterations = DEFAULT_MEASUREMENT_ITERATIONS;
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    public FileCopyBenchmark(long[] fileSizes, long[] bufferSizes) {
+        this.fileSizes = fileSizes;
+        this.bufferSizes = bufferSizes;
+    }
+
+    public FileCopyBenchmark iterations(int warmupIterations, int measurementIterations) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = Math.max(2, measurementIterations);
+        return this;
+    }
+
+    /**
+     * 添加一种与缓冲区大小无关的拷贝方式，每种文件大小测试一次
+     * @param maxFileSize 只测试不超过该大小的文件，用于跳过过慢的方式
+     * @param factory 参数为缓冲区大小，此时固定为 0
+     */
+    public FileCopyBenchmark add(String name, long maxFileSize, IntFunction<FileCopyRunner> factory) {
+        candidates.add(new Candidate(name, false, maxFileSize, factory));
+        return this;
+    }
+
+    /**
+     * 添加一种使用缓冲区的拷贝方式，每种文件大小、缓冲区大小的组合测试一次
+     * @param factory 参数为缓冲区大小
+     */
+    public FileCopyBenchmark addBuffered(String name, IntFunction<FileCopyRunner> factory) {
+        candidates.add(new Candidate(name, true, Long.MAX_VALUE, factory));
+        return this;
+    }
+
+    /**
+     * 生成源文件并依次测试所有组合，结束后删除临时文件
+     */
+    public void run() throws IOException {
+        File dir = Files.createTempDirectory("file-copy-benchmark").toFile();
+        try {
+            System.out.println("临时目录：" + dir + "，预热 " + warmupIterations + " 轮，测量 "
+                    + measurementIterations + " 轮，每轮至少 " + ITERATION_MILLIS + "ms");
+            System.out.println(String.format("%-20s %8s %8s %5s %10s %10s  %-5s %14s %9s %11s",
+                    "Benchmark", "fileSize", "buffer", "Cnt", "Score", "Error", "Units",
+                    "alloc(B/op)", "gc.count", "gc.time(ms)"));
+            for (long fileSize : fileSizes) {
+                File source = new File(dir, "source-" + formatSize(fileSize));
+                File target = new File(dir, "target-" + formatSize(fileSize));
+                generate(source, fileSize);
+                for (Candidate candidate : candidates) {
+                    if (fileSize > candidate.maxFileSize) {
+                        continue;
+                    }
+                    if (candidate.buffered) {
+                        for (long bufferSize : bufferSizes) {
+                            measure(candidate, (int) bufferSize, source, target);
+                        }
+                    } else {
+                        measure(candidate, 0, source, target);
+                    }
+                }
+                source.delete();
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private void measure(Candidate candidate, int bufferSize, File source, File target) {
+        FileCopyRunner runner = candidate.factory.apply(bufferSize);
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(runner, source, target);
+        }
+
+        double[] scores = new double[measurementIterations];
+        long operations = 0;
+        long allocated = 0;
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        for (int i = 0; i < measurementIterations; i++) {
+            long allocatedBefore = allocatedBytes();
+            Iteration result = iteration(runner, source, target);
+            allocated += allocatedBytes() - allocatedBefore;
+            operations += result.operations;
+            // 吞吐量：MB/s
+            scores[i] = (double) source.length() * result.operations / (1024 * 1024) / (result.nanos / 1e9);
+        }
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        variance /= scores.length - 1;
+        int degrees = scores.length - 1;
+        double error = (degrees < T_999.length ? T_999[degrees] : Z_999) * Math.sqrt(variance / scores.length);
+
+        System.out.println(String.format("%-20s %8s %8s %5d %10.1f ± %8.1f  %-5s %14s %9d %11d",
+                candidate.name, formatSize(source.length()), candidate.buffered ? formatSize(bufferSize) : "-",
+                scores.length, mean, error, "MB/s",
+                allocatedBytes() == Long.MIN_VALUE ? "n/a" : String.valueOf(allocated / operations),
+                gcCount, gcTime));
+    }
+
+    /**
+     * 一轮测试：反复拷贝直到累计时间超过 ITERATION_MILLIS，只统计 copyFile 本身的时间
+     */
+    private static Iteration iteration(FileCopyRunner runner, File source, File target) {
+        Iteration result = new Iteration();
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1000_000;
+        do {
+            long start = System.nanoTime();
+            runner.copyFile(source, target);
+            result.nanos += System.nanoTime() - start;
+            result.operations++;
+            // copyFile 只打印异常，通过文件长度判断拷贝是否成功
+            if (target.length() != source.length()) {
+                throw new IllegalStateException(runner + " 拷贝失败：目标文件长度 " + target.length()
+                        + "，源文件长度 " + source.length());
+            }
+            target.delete();
+        } while (System.nanoTime() < deadline);
+        return result;
+    }
+
+    /**
+     * 生成指定大小的源文件，内容为随机字节
+     */
+    static void generate(File file, long size) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(size, FILL_CHUNK_SIZE)];
+        Random random = new Random(size);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * 当前线程累计分配的字节数，JVM 不支持时返回 Long.MIN_VALUE
+     * 并行拷贝时其他线程上的分配不计入
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * 解析以逗号分隔的大小列表，支持 K、M、G 后缀，例如 "4K,1M,2G"
+     */
+    public static long[] parseSizes(String sizes) {
+        String[] parts = sizes.split(",");
+        long[] result = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = parseSize(parts[i].trim());
+        }
+        return result;
+    }
+
+    public static long parseSize(String size) {
+        String upper = size.toUpperCase();
+        long unit = 1;
+        switch (upper.charAt(upper.length() - 1)) {
+            case 'K':
+                unit = 1024L;
+                break;
+            case 'M':
+                unit = 1024L * 1024;
+                break;
+            case 'G':
+                unit = 1024L * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(upper);
+        }
+        return Long.parseLong(upper.substring(0, upper.length() - 1)) * unit;
+    }
+
+    public static String formatSize(long size) {
+        if (size >= 1024L * 1024 * 1024 && size % (1024L * 1024 * 1024) == 0) {
+            return size / (1024L * 1024 * 1024) + "G";
+        }
+        if (size >= 1024L * 1024 && size % (1024L * 1024) == 0) {
+            return size / (1024L * 1024) + "M";
+        }
+        if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + "K";
+        }
+        return String.valueOf(size);
+    }
+
+    /**
+     * 一种参与测试的拷贝方式
+     */
+    private static class Candidate {
+        final String name;
+        /** 是否按缓冲区大小分别测试 */
+        final boolean buffered;
+        final long maxFileSize;
+        final IntFunction<FileCopyRunner> factory;
+
+        Candidate(String name, boolean buffered, long maxFileSize, IntFunction<FileCopyRunner> factory) {
+            this.name = name;
+            this.buffered = buffered;
+            this.maxFileSize = maxFileSize;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * 一轮测试的结果
+     */
+    private static class Iteration {
+        long operations = 0;
+        long nanos = 0;
+    }
+}
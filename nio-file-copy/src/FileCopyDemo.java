@@ -1,30 +1,26 @@
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-
-/**
- * 定义接口
- */
-interface FileCopyRunner {
-    void copyFile(File source, File target);
-}
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class FileCopyDemo {
 
-    private static final int ROUNDS = 5;
-
-    private static void benchmark(FileCopyRunner test, File source, File target) {
-        long elapsed = 0L;
-        for (int i = 0; i < ROUNDS; i++) {
-            long startTime = System.currentTimeMillis();
-            test.copyFile(source, target);
-            elapsed += System.currentTimeMillis() - startTime;
-            target.delete();
-        }
-        System.out.println(test + ": " + elapsed / ROUNDS + "ms");
-    }
+    /** 默认测试的文件大小 */
+    private static final String DEFAULT_FILE_SIZES = "4K,1M,64M";
+    /** 默认测试的缓冲区大小（只对使用缓冲区的方式有效） */
+    private static final String DEFAULT_BUFFER_SIZES = "1K,8K,64K";
+    /** 不使用缓冲区时每个字节一次系统调用，只测试不超过该大小的文件 */
+    private static final long NO_BUFFER_MAX_FILE_SIZE = 1024 * 1024;
+    /** 内存映射拷贝参与测试的窗口大小 */
+    private static final long[] MMAP_WINDOW_SIZES = {64L * 1024 * 1024, 256L * 1024 * 1024};
+    /** 并行拷贝参与测试的线程数 */
+    private static final int[] PARALLELISMS = {2, 4};
+    /** 并行拷贝时每个任务负责的最大字节数，不超过该大小的文件直接在调用线程中拷贝 */
+    private static final long PARALLEL_CHUNK_SIZE = 8 * 1024 * 1024;
 
-    private static void close(Closeable closeable) {
+    static void close(Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
@@ -34,12 +30,11 @@ public class FileCopyDemo {
         }
     }
 
-    public static void main(String[] args) {
-
-        /**
-         * 使用Stream，不使用缓冲区
-         */
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
+    /**
+     * 使用Stream，不使用缓冲区
+     */
+    static FileCopyRunner noBufferStreamCopy() {
+        return new FileCopyRunner() {
             @Override
             public void copyFile(File source, File target) {
                 InputStream fin = null;
@@ -66,11 +61,14 @@ public class FileCopyDemo {
                 return "noBufferStreamCopy";
             }
         };
+    }
 
-        /**
-         * 使用Stream，使用缓冲区
-         */
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
+    /**
+     * 使用Stream，使用缓冲区
+     * @param bufferSize 缓冲区大小
+     */
+    static FileCopyRunner bufferedStreamCopy(final int bufferSize) {
+        return new FileCopyRunner() {
             @Override
             public void copyFile(File source, File target) {
                 InputStream fin = null;
@@ -81,7 +79,7 @@ public class FileCopyDemo {
                     fout = new BufferedOutputStream(new FileOutputStream(target));
 
                     // 缓冲区
-                    byte[] buffer = new byte[1024];
+                    byte[] buffer = new byte[bufferSize];
 
                     // 没读到结尾时，result为这一次读到的数量；读到结尾时，result为-1
                     int result;
@@ -101,11 +99,14 @@ public class FileCopyDemo {
                 return "bufferedStreamCopy";
             }
         };
+    }
 
-        /**
-         * 使用 Channel，使用 Buffer 进行读写
-         */
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
+    /**
+     * 使用 Channel，使用 Buffer 进行读写
+     * @param bufferSize 缓冲区大小
+     */
+    static FileCopyRunner nioBufferCopy(final int bufferSize) {
+        return new FileCopyRunner() {
             @Override
             public void copyFile(File source, File target) {
                 // 声明文件通道
@@ -118,7 +119,7 @@ public class FileCopyDemo {
                     fout = new FileOutputStream(target).getChannel();
 
                     // 创建ByteBuffer类型的缓冲区（按字节读取）
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
+                    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
                     // 将数据从文件通道中读取出来，写进Buffer
                     while (fin.read(buffer) != -1) {
                         // 将Buffer从写模式转换为读模式
@@ -143,11 +144,13 @@ public class FileCopyDemo {
                 return "nioBufferCopy";
             }
         };
+    }
 
-        /**
-         * 使用 Channel，在两个 Channel 间直接传输数据
-         */
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
+    /**
+     * 使用 Channel，在两个 Channel 间直接传输数据
+     */
+    static FileCopyRunner nioTransferCopy() {
+        return new FileCopyRunner() {
             @Override
             public void copyFile(File source, File target) {
                 // 声明文件通道
@@ -162,9 +165,9 @@ public class FileCopyDemo {
                     long transferred = 0L;
                     long size = fin.size();
                     while (transferred != size) {
-                        // 从位置0开始，拷贝fin通道中size长度的数据，至fout通道，返回的是已拷贝长度
+                        // 从已拷贝的位置开始，拷贝fin通道中剩余的数据，至fout通道，返回的是本次拷贝的长度
                         // transferTo不能保证拷贝通道中的所有数据，因此使用while循环
-                        transferred += fin.transferTo(0, size, fout);
+                        transferred += fin.transferTo(transferred, size - transferred, fout);
                     }
 
                 } catch (IOException e) {
@@ -180,32 +183,191 @@ public class FileCopyDemo {
                 return "nioTransferCopy";
             }
         };
+    }
 
-        File smallFile = new File("E:/JavaProject/web/nio-file-copy/tmp/smallFile.jpg");
-        File smallFileCopy = new File("E:/JavaProject/web/nio-file-copy/tmp/smallFile-copy.jpg");
+    /**
+     * 使用内存映射，按窗口依次映射源文件与目标文件的同一段，在两块映射内存之间复制
+     * 单个 MappedByteBuffer 最大 2GB，按窗口映射才能拷贝更大的文件；
+     * 映射在 MappedByteBuffer 被回收时才解除，窗口越小，同时存在的映射越多
+     * @param windowSize 每次映射的字节数，不超过 Integer.MAX_VALUE
+     * @param forcePolicy 将目标文件写回磁盘的时机
+     */
+    static FileCopyRunner mmapCopy(final long windowSize, final ForcePolicy forcePolicy) {
+        // 超过 Integer.MAX_VALUE 时 map 抛出 IllegalArgumentException，为 0 时拷贝无法前进
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("非法的映射窗口大小: " + windowSize);
+        }
+        return new FileCopyRunner() {
+            @Override
+            public void copyFile(File source, File target) {
+                FileChannel fin = null;
+                FileChannel fout = null;
 
-        System.out.println("--- Copying small file ---");
-        benchmark(noBufferStreamCopy, smallFile, smallFileCopy);
-        benchmark(bufferedStreamCopy, smallFile, smallFileCopy);
-        benchmark(nioBufferCopy, smallFile, smallFileCopy);
-        benchmark(nioTransferCopy, smallFile, smallFileCopy);
+                try {
+                    fin = new FileInputStream(source).getChannel();
+                    // 映射为 READ_WRITE 需要以读写方式打开目标文件
+                    fout = new RandomAccessFile(target, "rw").getChannel();
 
-        File bigFile = new File("E:/JavaProject/web/nio-file-copy/tmp/bigFile.pptx");
-        File bigFileCopy = new File("E:/JavaProject/web/nio-file-copy/tmp/bigFile-copy.pptx");
+                    long size = fin.size();
+                    // 目标文件可能已存在且更长，先截断；映射超出文件末尾的部分时文件会自动变长
+                    fout.truncate(size);
+                    for (long position = 0; position < size; position += windowSize) {
+                        long length = Math.min(windowSize, size - position);
+                        MappedByteBuffer in = fin.map(FileChannel.MapMode.READ_ONLY, position, length);
+                        MappedByteBuffer out = fout.map(FileChannel.MapMode.READ_WRITE, position, length);
+                        out.put(in);
+                        if (forcePolicy == ForcePolicy.PER_WINDOW) {
+                            out.force();
+                        }
+                    }
+                    if (forcePolicy == ForcePolicy.AT_END) {
+                        // 映射与通道共用页缓存，同步通道即可写回所有窗口
+                        fout.force(false);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    close(fin);
+                    close(fout);
+                }
+            }
 
-        System.out.println("--- Copying big file ---");
-//        benchmark(noBufferStreamCopy, bigFile, bigFileCopy);
-        benchmark(bufferedStreamCopy, bigFile, bigFileCopy);
-        benchmark(nioBufferCopy, bigFile, bigFileCopy);
-        benchmark(nioTransferCopy, bigFile, bigFileCopy);
+            @Override
+            public String toString() {
+                return "mmapCopy";
+            }
+        };
+    }
 
-        File hugeFile = new File("E:/JavaProject/web/nio-file-copy/tmp/hugeFile.mp4");
-        File hugeFileCopy = new File("E:/JavaProject/web/nio-file-copy/tmp/hugeFile-copy.mp4");
+    /**
+     * 将文件分成若干段，在 ForkJoinPool 中并行拷贝
+     * 每段使用 FileChannel 的定位读写（pread / pwrite），不改变通道的位置，多个线程可以共用同一对通道；
+     * 顺序拷贝同一时刻只有一个 I/O 请求，并行拷贝才能用满 NVMe 等设备的队列深度
+     * @param parallelism 并行拷贝的线程数
+     * @param bufferSize 每个线程的缓冲区大小
+     */
+    static FileCopyRunner parallelCopy(final int parallelism, final int bufferSize) {
+        // 线程池与缓冲区在多次拷贝间复用，线程都是守护线程，空闲一段时间后自动结束
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+        return new FileCopyRunner() {
+            @Override
+            public void copyFile(File source, File target) {
+                FileChannel fin = null;
+                FileChannel fout = null;
+
+                try {
+                    fin = new FileInputStream(source).getChannel();
+                    fout = new FileOutputStream(target).getChannel();
+
+                    long size = fin.size();
+                    if (size <= PARALLEL_CHUNK_SIZE) {
+                        // 小文件拆分的开销比收益大
+                        RangeCopy.copy(fin, fout, 0, size, buffers.get());
+                    } else {
+                        pool.invoke(new RangeCopy(fin, fout, 0, size, buffers));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (UncheckedIOException e) {
+                    e.getCause().printStackTrace();
+                } finally {
+                    close(fin);
+                    close(fout);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "parallelCopy";
+            }
+        };
+    }
+
+    /**
+     * 并行拷贝的任务：拷贝 [start, end) 这一段，超过 PARALLEL_CHUNK_SIZE 时对半拆分
+     */
+    @SuppressWarnings("serial")
+    private static class RangeCopy extends RecursiveAction {
+        private final FileChannel fin;
+        private final FileChannel fout;
+        private final long start;
+        private final long end;
+        private final ThreadLocal<ByteBuffer> buffers;
 
-        System.out.println("--- Copying huge file ---");
-//        benchmark(noBufferStreamCopy, hugeFile, hugeFileCopy);
-        benchmark(bufferedStreamCopy, hugeFile, hugeFileCopy);
-        benchmark(nioBufferCopy, hugeFile, hugeFileCopy);
-        benchmark(nioTransferCopy, hugeFile, hugeFileCopy);
+        RangeCopy(FileChannel fin, FileChannel fout, long start, long end, ThreadLocal<ByteBuffer> buffers) {
+            this.fin = fin;
+            this.fout = fout;
+            this.start = start;
+            this.end = end;
+            this.buffers = buffers;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= PARALLEL_CHUNK_SIZE) {
+                try {
+                    copy(fin, fout, start, end, buffers.get());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            long middle = start + (end - start) / 2;
+            invokeAll(new RangeCopy(fin, fout, start, middle, buffers),
+                    new RangeCopy(fin, fout, middle, end, buffers));
+        }
+
+        /**
+         * 用定位读写拷贝 [start, end)
+         */
+        static void copy(FileChannel fin, FileChannel fout, long start, long end, ByteBuffer buffer) throws IOException {
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int) (end - position));
+                }
+                int count = fin.read(buffer, position);
+                if (count < 0) {
+                    // 否则目标文件末尾会留下未写入的空洞，却被当作拷贝成功
+                    throw new IOException("源文件在拷贝过程中被截短");
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += fout.write(buffer, position);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // 参数1：文件大小列表，参数2：缓冲区大小列表，例如 "4K,1M,64M" "1K,8K,64K"
+        // 参数3、4：预热轮数、测量轮数
+        long[] fileSizes = FileCopyBenchmark.parseSizes(args.length > 0 ? args[0] : DEFAULT_FILE_SIZES);
+        long[] bufferSizes = FileCopyBenchmark.parseSizes(args.length > 1 ? args[1] : DEFAULT_BUFFER_SIZES);
+        FileCopyBenchmark benchmark = new FileCopyBenchmark(fileSizes, bufferSizes);
+        if (args.length > 3) {
+            benchmark.iterations(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        }
+
+        benchmark.add("noBufferStreamCopy", NO_BUFFER_MAX_FILE_SIZE, bufferSize -> noBufferStreamCopy());
+        benchmark.addBuffered("bufferedStreamCopy", FileCopyDemo::bufferedStreamCopy);
+        benchmark.addBuffered("nioBufferCopy", FileCopyDemo::nioBufferCopy);
+        // 与 nioBufferCopy 对比，衡量统计本身的开销
+        benchmark.addBuffered("instrumentedCopy", bufferSize -> new InstrumentedCopyRunner(bufferSize, false));
+        benchmark.add("nioTransferCopy", Long.MAX_VALUE, bufferSize -> nioTransferCopy());
+        for (long windowSize : MMAP_WINDOW_SIZES) {
+            benchmark.add("mmapCopy/" + FileCopyBenchmark.formatSize(windowSize), Long.MAX_VALUE,
+                    bufferSize -> mmapCopy(windowSize, ForcePolicy.NONE));
+        }
+        for (int parallelism : PARALLELISMS) {
+            benchmark.addBuffered("parallelCopy/" + parallelism, bufferSize -> parallelCopy(parallelism, bufferSize));
+        }
+        benchmark.add("resumableCopy", Long.MAX_VALUE, bufferSize -> new ResumableCopyRunner());
+        // 只在内存中边拷贝边学习：测试文件在临时目录中且位于页缓存里，测得的吞吐量不能覆盖用户校准的记录
+        AdaptiveCopyRunner adaptiveCopy = new AdaptiveCopyRunner(null);
+        benchmark.add("adaptiveCopy", Long.MAX_VALUE, bufferSize -> adaptiveCopy);
+        benchmark.run();
     }
 }
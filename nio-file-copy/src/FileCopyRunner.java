@@ -0,0 +1,8 @@
+import java.io.File;
+
+/**
+ * 定义接口
+ */
+interface FileCopyRunner {
+    void copyFile(File source, File target);
+}
@@ -0,0 +1,14 @@
+/**
+ * 内存映射拷贝时，将目标文件的修改写回磁盘的时机
+ */
+public enum ForcePolicy {
+
+    /** 不主动写回，由操作系统决定何时落盘，速度最快 */
+    NONE,
+
+    /** 每拷贝完一个映射窗口就写回该窗口，中途崩溃时已完成的窗口不会丢失 */
+    PER_WINDOW,
+
+    /** 全部拷贝完成后写回一次 */
+    AT_END
+}
@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 带统计的拷贝：记录每次 read / write / transferTo 调用的次数与耗时，定期通过 CopyListener 报告进度，
+ * 失败时抛出异常并通知 onFailure，而不是只打印异常
+ * 每次系统调用只多两次 System.nanoTime()，与系统调用本身相比可以忽略
+ */
+public class InstrumentedCopyRunner implements FileCopyRunner {
+
+    /** 两次进度报告的最小间隔 */
+    private static final long PROGRESS_INTERVAL_NANOS = 100 * 1000 * 1000;
+    /** transferTo 方式每次调用最多传输的字节数，分次调用才能报告进度 */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final int bufferSize;
+    /** true：使用 transferTo；false：使用缓冲区读写 */
+    private final boolean useTransferTo;
+    private final List<CopyListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param bufferSize 使用缓冲区读写时缓冲区的大小
+     * @param useTransferTo 是否使用 transferTo，此时 bufferSize 无效
+     */
+    public InstrumentedCopyRunner(int bufferSize, boolean useTransferTo) {
+        this.bufferSize = bufferSize;
+        this.useTransferTo = useTransferTo;
+    }
+
+    public InstrumentedCopyRunner addListener(CopyListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            copy(source, target);
+        } catch (IOException e) {
+            // 已经通知了 onFailure；没有监听器时至少打印出来，与其他 FileCopyRunner 一致
+            if (listeners.isEmpty()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return useTransferTo ? "instrumentedTransferCopy" : "instrumentedCopy";
+    }
+
+    /**
+     * 拷贝文件
+     * @return 本次拷贝的统计
+     * @throws IOException 拷贝失败，此前已通知 onFailure
+     */
+    public CopyProgress copy(File source, File target) throws IOException {
+        CopyProgress progress = new CopyProgress(source.length());
+        fireStart(source, target, progress);
+        try (FileChannel fin = new FileInputStream(source).getChannel();
+             FileChannel fout = new FileOutputStream(target).getChannel()) {
+            if (useTransferTo) {
+                transfer(fin, fout, source, target, progress);
+            } else {
+                bufferCopy(fin, fout, source, target, progress);
+            }
+        } catch (IOException e) {
+            progress.finish();
+            fireFailure(source, target, progress, e);
+            throw e;
+        }
+        progress.finish();
+        fireComplete(source, target, progress);
+        return progress;
+    }
+
+    private void bufferCopy(FileChannel fin, FileChannel fout, File source, File target, CopyProgress progress)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+        while (true) {
+            long start = System.nanoTime();
+            int count = fin.read(buffer);
+            long end = System.nanoTime();
+            progress.readCalls++;
+            progress.readNanos += end - start;
+            if (count < 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                start = end;
+                progress.bytesCopied += fout.write(buffer);
+                end = System.nanoTime();
+                progress.writeCalls++;
+                progress.writeNanos += end - start;
+            }
+            buffer.clear();
+            if (end >= nextProgress) {
+                progress.mark(end);
+                fireProgress(source, target, progress);
+                nextProgress = end + PROGRESS_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    private void transfer(FileChannel fin, FileChannel fout, File source, File target, CopyProgress progress)
+            throws IOException {
+        long size = fin.size();
+        long nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+        while (progress.bytesCopied < size) {
+            long start = System.nanoTime();
+            long count = fin.transferTo(progress.bytesCopied,
+                    Math.min(TRANSFER_CHUNK_SIZE, size - progress.bytesCopied), fout);
+            long end = System.nanoTime();
+            progress.transferCalls++;
+            progress.transferNanos += end - start;
+            if (count == 0 && progress.bytesCopied >= fin.size()) {
+                // 源文件被截短后 transferTo 一直返回 0
+                throw new IOException("源文件在拷贝过程中被截短：" + source);
+            }
+            progress.bytesCopied += count;
+            if (end >= nextProgress) {
+                progress.mark(end);
+                fireProgress(source, target, progress);
+                nextProgress = end + PROGRESS_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    /**
+     * 为任意 FileCopyRunner 加上统计：只能得到总耗时与字节数，没有系统调用的明细；
+     * 拷贝后目标文件不存在或长度与源文件不一致时视为失败
+     */
+    public static FileCopyRunner wrap(final FileCopyRunner runner, final CopyListener... listeners) {
+        return new FileCopyRunner() {
+            @Override
+            public void copyFile(File source, File target) {
+                CopyProgress progress = new CopyProgress(source.length());
+                for (CopyListener listener : listeners) {
+                    listener.onStart(source, target, progress);
+                }
+                runner.copyFile(source, target);
+                progress.bytesCopied = target.length();
+                progress.finish();
+                // 源文件不存在时长度同样为 0
+                boolean complete = source.isFile() && target.isFile() && progress.bytesCopied == progress.totalBytes;
+                for (CopyListener listener : listeners) {
+                    if (complete) {
+                        listener.onComplete(source, target, progress);
+                    } else {
+                        listener.onFailure(source, target, progress, new IOException("拷贝不完整：" + target));
+                    }
+                }
+            }
+
+            @Override
+            public String toString() {
+                return runner.toString();
+            }
+        };
+    }
+
+    private void fireStart(File source, File target, CopyProgress progress) {
+        for (CopyListener listener : listeners) {
+            listener.onStart(source, target, progress);
+        }
+    }
+
+    private void fireProgress(File source, File target, CopyProgress progress) {
+        for (CopyListener listener : listeners) {
+            listener.onProgress(source, target, progress);
+        }
+    }
+
+    private void fireComplete(File source, File target, CopyProgress progress) {
+        for (CopyListener listener : listeners) {
+            listener.onComplete(source, target, progress);
+        }
+    }
+
+    private void fireFailure(File source, File target, CopyProgress progress, IOException cause) {
+        for (CopyListener listener : listeners) {
+            listener.onFailure(source, target, progress, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("参数：源文件 目标文件 [缓冲区大小|transfer]");
+            return;
+        }
+        // 参数3：缓冲区大小，例如 64K；transfer 表示使用 transferTo
+        boolean useTransferTo = args.length > 2 && "transfer".equals(args[2]);
+        int bufferSize = args.length > 2 && !useTransferTo
+                ? (int) FileCopyBenchmark.parseSize(args[2]) : DEFAULT_BUFFER_SIZE;
+        CopyMetrics metrics = new CopyMetrics();
+        InstrumentedCopyRunner runner = new InstrumentedCopyRunner(bufferSize, useTransferTo);
+        runner.addListener(metrics).addListener(new CopyListener() {
+            @Override
+            public void onProgress(File source, File target, CopyProgress progress) {
+                System.out.println(progress);
+            }
+
+            @Override
+            public void onComplete(File source, File target, CopyProgress progress) {
+                System.out.println("完成：" + progress);
+            }
+
+            @Override
+            public void onFailure(File source, File target, CopyProgress progress, IOException cause) {
+                System.out.println("失败：" + cause + "，" + progress);
+            }
+        });
+        runner.copyFile(new File(args[0]), new File(args[1]));
+        metrics.report();
+    }
+}
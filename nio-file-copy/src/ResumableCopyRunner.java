@@ -0,0 +1,354 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * 可断点续传、带校验的大文件拷贝
+ *
+ * 文件按 chunkSize 分块顺序拷贝，每块拷贝时顺便计算源数据的 CRC32C（有硬件指令支持，比拷贝本身快得多；
+ * CRC32C 从 JDK 9 开始提供，通过反射加载，JDK 8 上退回到 CRC32）：
+ * 1. 一块写完后先将目标文件落盘，再把该块的校验值追加到检查点文件（目标文件名 + ".ckpt"）并落盘，
+ *    所以检查点中记录的块一定已经完整写入
+ * 2. 再次拷贝同一文件时，如果检查点与源文件（大小、修改时间、块大小、校验算法）一致，从已提交的块之后继续；
+ *    续传前重新读取目标文件中所有已提交的块并校验（只读，比重新拷贝便宜），从第一个校验失败的块开始重新拷贝；
+ *    目标文件比已提交的部分短（被删除或截短）时直接从头拷贝
+ * 3. 拷贝失败时最多重试 retries 次，每次都从检查点继续，不重新发送已经提交的数据
+ * 4. verifyTarget 为 true 时，拷贝完成后重新读取目标文件，逐块与记录的校验值比较
+ * 拷贝成功后删除检查点文件
+ */
+public class ResumableCopyRunner implements FileCopyRunner {
+
+    private static final long DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_RETRIES = 3;
+    /** 每次读写的字节数 */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /** 检查点文件的第一行，标识格式版本 */
+    private static final String CHECKPOINT_MAGIC = "resumable-copy-v2";
+    private static final String CHECKPOINT_SUFFIX = ".ckpt";
+    /** CRC32C 的构造器，JDK 8 上为 null */
+    private static final Constructor<?> CRC32C_CONSTRUCTOR = crc32cConstructor();
+    /** 校验算法的名称，写入检查点，换用不同版本的 JDK 续传时不会误用另一种算法的校验值 */
+    private static final String CHECKSUM_ALGORITHM = CRC32C_CONSTRUCTOR != null ? "crc32c" : "crc32";
+
+    private final long chunkSize;
+    private final int retries;
+    private final boolean verifyTarget;
+
+    public ResumableCopyRunner() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_RETRIES, false);
+    }
+
+    /**
+     * @param chunkSize 每块的字节数，也是两次检查点之间的数据量，越大落盘的次数越少
+     * @param retries 拷贝失败后的重试次数
+     * @param verifyTarget 拷贝完成后是否重新读取目标文件进行校验
+     */
+    public ResumableCopyRunner(long chunkSize, int retries, boolean verifyTarget) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("非法的块大小: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.retries = retries;
+        this.verifyTarget = verifyTarget;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                copy(source, target);
+                return;
+            } catch (IOException e) {
+                if (attempt >= retries) {
+                    e.printStackTrace();
+                    return;
+                }
+                System.out.println("拷贝失败，从检查点重试（" + (attempt + 1) + "/" + retries + "）：" + e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "resumableCopy";
+    }
+
+    /**
+     * 拷贝一次，失败时保留检查点
+     * @throws IOException 读写失败，或校验不通过
+     */
+    public void copy(File source, File target) throws IOException {
+        File checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+        try (FileChannel fin = new FileInputStream(source).getChannel();
+             FileChannel fout = new RandomAccessFile(target, "rw").getChannel()) {
+            long size = fin.size();
+            String header = header(source, size);
+            // Checksum 在 JDK 8 上只能处理字节数组，使用堆内缓冲区
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+            List<Long> checksums = readCheckpoint(checkpointFile, header);
+            if (fout.size() < Math.min(checksums.size() * chunkSize, size)) {
+                // 目标文件在中断后被删除或截短，已提交的块不再可信
+                checksums.clear();
+            }
+            // 检查点写入后目标文件可能被修改或损坏，续传前逐块校验，只保留校验通过的前缀
+            for (int chunk = 0; chunk < checksums.size(); chunk++) {
+                if (checksum(fout, chunk * chunkSize, chunkLength(chunk, size), buffer) != checksums.get(chunk)) {
+                    checksums.subList(chunk, checksums.size()).clear();
+                    break;
+                }
+            }
+            if (checksums.isEmpty()) {
+                fout.truncate(0);
+            } else {
+                System.out.println("从检查点继续：已完成 " + checksums.size() + " 块（"
+                        + checksums.size() * chunkSize + " 字节）");
+            }
+            // 重写检查点：丢弃已失效的记录，之后只追加
+            writeCheckpoint(checkpointFile, header, checksums);
+
+            try (FileOutputStream checkpoint = new FileOutputStream(checkpointFile, true);
+                 Writer writer = new OutputStreamWriter(checkpoint, StandardCharsets.US_ASCII)) {
+                Checksum crc = newChecksum();
+                for (int chunk = checksums.size(); chunk * chunkSize < size; chunk++) {
+                    long start = chunk * chunkSize;
+                    long end = start + chunkLength(chunk, size);
+                    crc.reset();
+                    for (long position = start; position < end; ) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                        if (fin.read(buffer, position) < 0) {
+                            throw new IOException("源文件在拷贝过程中被截短：" + source);
+                        }
+                        buffer.flip();
+                        // 计算校验值不改变 buffer 的位置
+                        crc.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                        while (buffer.hasRemaining()) {
+                            position += fout.write(buffer, position);
+                        }
+                    }
+                    // 先让数据落盘，再提交检查点
+                    fout.force(false);
+                    writer.write(chunk + " " + Long.toHexString(crc.getValue()) + "\n");
+                    writer.flush();
+                    checkpoint.getFD().sync();
+                    checksums.add(crc.getValue());
+                }
+            }
+            // 目标文件原来可能更长
+            fout.truncate(size);
+
+            if (verifyTarget) {
+                for (int chunk = 0; chunk < checksums.size(); chunk++) {
+                    if (checksum(fout, chunk * chunkSize, chunkLength(chunk, size), buffer) != checksums.get(chunk)) {
+                        // 删除检查点，下次从头拷贝
+                        checkpointFile.delete();
+                        throw new IOException("目标文件第 " + chunk + " 块校验失败：" + target);
+                    }
+                }
+            }
+        }
+        checkpointFile.delete();
+    }
+
+    private long chunkLength(long chunk, long size) {
+        return Math.min(chunkSize, size - chunk * chunkSize);
+    }
+
+    /**
+     * 计算 channel 中 [start, start + length) 的 CRC32C
+     */
+    private static long checksum(FileChannel channel, long start, long length, ByteBuffer buffer) throws IOException {
+        Checksum crc = newChecksum();
+        long end = start + length;
+        for (long position = start; position < end; ) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                // 文件比记录的短，返回一个不可能匹配的值
+                return -1;
+            }
+            crc.update(buffer.array(), buffer.arrayOffset(), count);
+            position += count;
+        }
+        return crc.getValue();
+    }
+
+    private String header(File source, long size) {
+        return CHECKPOINT_MAGIC + " " + CHECKSUM_ALGORITHM + " " + size + " " + source.lastModified() + " " + chunkSize;
+    }
+
+    private static Checksum newChecksum() {
+        if (CRC32C_CONSTRUCTOR == null) {
+            return new CRC32();
+        }
+        try {
+            return (Checksum) CRC32C_CONSTRUCTOR.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Constructor<?> crc32cConstructor() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取检查点中已提交的各块的校验值
+     * @param header 当前源文件对应的头部，与检查点中的不一致时说明源文件已改变，返回空列表
+     */
+    private static List<Long> readCheckpoint(File checkpointFile, String header) throws IOException {
+        List<Long> checksums = new ArrayList<>();
+        if (!checkpointFile.exists()) {
+            return checksums;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.US_ASCII))) {
+            if (!header.equals(reader.readLine())) {
+                return checksums;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                // 只接受从 0 开始连续的完整记录，最后一行可能只写了一半
+                if (parts.length != 2 || !parts[0].equals(String.valueOf(checksums.size()))) {
+                    break;
+                }
+                try {
+                    checksums.add(Long.parseLong(parts[1], 16));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        return checksums;
+    }
+
+    private static void writeCheckpoint(File checkpointFile, String header, List<Long> checksums) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(checkpointFile);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII)) {
+            writer.write(header + "\n");
+            for (int chunk = 0; chunk < checksums.size(); chunk++) {
+                writer.write(chunk + " " + Long.toHexString(checksums.get(chunk)) + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * 自检：伪造一个中断后留下的检查点，分别在目标文件完好、被删除、被截短时续传，检查结果与源文件一致
+     * @return 是否全部通过
+     */
+    static boolean selfTest(File dir) throws IOException {
+        long chunkSize = 1024 * 1024;
+        File source = new File(dir, "resumable-selftest-source");
+        File target = new File(dir, "resumable-selftest-target");
+        File checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+        ResumableCopyRunner runner = new ResumableCopyRunner(chunkSize, 0, false);
+        boolean passed = true;
+        try {
+            // 3.5 块，最后一块不完整
+            FileCopyBenchmark.generate(source, chunkSize * 7 / 2);
+            for (String scenario : new String[]{"intact", "deleted", "truncated", "corrupted"}) {
+                runner.copy(source, target);
+                // 前 2 块已提交
+                List<Long> checksums = new ArrayList<>();
+                try (FileChannel channel = new FileInputStream(source).getChannel()) {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    for (int chunk = 0; chunk < 2; chunk++) {
+                        checksums.add(checksum(channel, chunk * chunkSize, chunkSize, buffer));
+                    }
+                }
+                writeCheckpoint(checkpointFile, runner.header(source, source.length()), checksums);
+                if ("deleted".equals(scenario)) {
+                    target.delete();
+                } else if ("truncated".equals(scenario)) {
+                    try (FileChannel channel = new RandomAccessFile(target, "rw").getChannel()) {
+                        // 截到第 0 块中间
+                        channel.truncate(chunkSize / 2);
+                    }
+                } else if ("corrupted".equals(scenario)) {
+                    try (FileChannel channel = new RandomAccessFile(target, "rw").getChannel()) {
+                        // 改写第 0 块中的一个字节，最后一个已提交的块仍然完好
+                        ByteBuffer one = ByteBuffer.allocate(1);
+                        channel.read(one, 100);
+                        one.put(0, (byte) ~one.get(0));
+                        one.rewind();
+                        channel.write(one, 100);
+                    }
+                }
+                runner.copy(source, target);
+                boolean same = sameContent(source, target) && !checkpointFile.exists();
+                System.out.println(scenario + "：" + (same ? "通过" : "失败"));
+                passed &= same;
+            }
+        } finally {
+            source.delete();
+            target.delete();
+            checkpointFile.delete();
+        }
+        return passed;
+    }
+
+    private static boolean sameContent(File a, File b) throws IOException {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        try (FileChannel ca = new FileInputStream(a).getChannel();
+             FileChannel cb = new FileInputStream(b).getChannel()) {
+            ByteBuffer ba = ByteBuffer.allocate(BUFFER_SIZE);
+            ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+            for (long position = 0; position < a.length(); position += BUFFER_SIZE) {
+                ba.clear();
+                bb.clear();
+                ca.read(ba, position);
+                cb.read(bb, position);
+                ba.flip();
+                bb.flip();
+                if (!ba.equals(bb)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // selftest [目录]：在目录（默认为临时目录）中检查续传的正确性
+        if (args.length > 0 && "selftest".equals(args[0])) {
+            File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+            if (!selfTest(dir)) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("参数：源文件 目标文件 [块大小] [verify]，或 selftest [目录]");
+            return;
+        }
+        // 参数3：块大小，例如 64M；参数4：verify 表示拷贝完成后校验目标文件
+        long chunkSize = args.length > 2 ? FileCopyBenchmark.parseSize(args[2]) : DEFAULT_CHUNK_SIZE;
+        boolean verifyTarget = args.length > 3 && "verify".equals(args[3]);
+        new ResumableCopyRunner(chunkSize, DEFAULT_RETRIES, verifyTarget).copyFile(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 拷贝整个目录树
+ * 大量小文件时，耗时主要在每个文件的打开、读写、关闭等系统调用上，而不是带宽上：
+ * 1. 在 ForkJoinPool 中并行遍历，每个子目录、每批文件都是一个任务，多个线程同时发出系统调用
+ * 2. 小文件（不超过缓冲区大小）使用线程私有的直接缓冲区，一次读、一次写即可完成，不为每个文件分配缓冲区
+ * 3. 大文件交给 largeFileRunner（默认为 transferTo）
+ */
+public class TreeCopier implements FileCopyRunner {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** 默认的小文件上限，不超过该大小的文件使用缓冲区拷贝 */
+    private static final long DEFAULT_SMALL_FILE_THRESHOLD = DEFAULT_BUFFER_SIZE;
+    /** 每个任务拷贝的文件数，一个目录中的文件很多时拆成多个任务 */
+    private static final int FILE_BATCH_SIZE = 64;
+
+    private final ForkJoinPool pool;
+    /** 是否保留文件与目录的时间，以及 POSIX 权限 */
+    private final boolean preserveAttributes;
+    private final long smallFileThreshold;
+    /** 拷贝大文件的方式 */
+    private final FileCopyRunner largeFileRunner;
+    /** 每个线程一个，拷贝小文件时复用 */
+    private final ThreadLocal<ByteBuffer> buffers;
+    private final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    public TreeCopier(int parallelism, boolean preserveAttributes) {
+        this(parallelism, preserveAttributes, DEFAULT_SMALL_FILE_THRESHOLD, DEFAULT_BUFFER_SIZE,
+                FileCopyDemo.nioTransferCopy());
+    }
+
+    public TreeCopier(int parallelism, boolean preserveAttributes, long smallFileThreshold, int bufferSize,
+                      FileCopyRunner largeFileRunner) {
+        if (smallFileThreshold > bufferSize) {
+            throw new IllegalArgumentException("小文件上限不能超过缓冲区大小: " + smallFileThreshold + " > " + bufferSize);
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.preserveAttributes = preserveAttributes;
+        this.smallFileThreshold = smallFileThreshold;
+        this.largeFileRunner = largeFileRunner;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        copyTree(source.toPath(), target.toPath());
+    }
+
+    /**
+     * 将 source 目录（或单个文件）拷贝为 target，单个文件拷贝失败不影响其他文件
+     * target 位于 source 目录之内时拒绝拷贝，否则会不断拷贝自己的输出
+     * @return 拷贝的文件数、字节数、耗时等
+     */
+    public Result copyTree(Path source, Path target) {
+        Result result = new Result();
+        long start = System.nanoTime();
+        try {
+            BasicFileAttributes attributes = readAttributes(source);
+            if (attributes.isDirectory()) {
+                if (realPath(target).startsWith(source.toRealPath())) {
+                    throw new IOException("目标目录位于源目录之内：" + target);
+                }
+                pool.invoke(new DirectoryCopy(source, target, attributes, result));
+            } else {
+                copyEntry(source, target, attributes, result);
+            }
+        } catch (IOException e) {
+            fail(source, e, result);
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * 拷贝一个目录：子目录与每批文件分别作为子任务，全部完成后再设置目录的时间
+     */
+    @SuppressWarnings("serial")
+    private class DirectoryCopy extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+        private final BasicFileAttributes attributes;
+        private final Result result;
+
+        DirectoryCopy(Path source, Path target, BasicFileAttributes attributes, Result result) {
+            this.source = source;
+            this.target = target;
+            this.attributes = attributes;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> subtasks = new ArrayList<>();
+            List<Path> batch = new ArrayList<>();
+            try {
+                Files.createDirectories(target);
+                result.directories.increment();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for (Path entry : entries) {
+                        batch.add(entry);
+                        if (batch.size() == FILE_BATCH_SIZE) {
+                            subtasks.add(new BatchCopy(batch, target, result).fork());
+                            batch = new ArrayList<>();
+                        }
+                    }
+                } catch (DirectoryIteratorException e) {
+                    // 遍历中途出错，已经列出的条目照常拷贝
+                    fail(source, e.getCause(), result);
+                }
+                // 最后一批在当前线程中完成
+                new BatchCopy(batch, target, result).compute();
+            } catch (IOException e) {
+                fail(source, e, result);
+            }
+            for (ForkJoinTask<?> subtask : subtasks) {
+                subtask.join();
+            }
+            if (preserveAttributes) {
+                // 在目录中创建文件会修改目录的时间，所以最后设置
+                try {
+                    copyAttributes(target, attributes);
+                } catch (IOException e) {
+                    fail(source, e, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * 拷贝同一目录下的一批条目，子目录作为新的任务
+     */
+    @SuppressWarnings("serial")
+    private class BatchCopy extends RecursiveAction {
+        private final List<Path> entries;
+        private final Path targetDirectory;
+        private final Result result;
+
+        BatchCopy(List<Path> entries, Path targetDirectory, Result result) {
+            this.entries = entries;
+            this.targetDirectory = targetDirectory;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryCopy> directories = new ArrayList<>();
+            for (Path entry : entries) {
+                Path target = targetDirectory.resolve(entry.getFileName().toString());
+                try {
+                    BasicFileAttributes attributes = readAttributes(entry);
+                    if (attributes.isDirectory()) {
+                        directories.add(new DirectoryCopy(entry, target, attributes, result));
+                    } else {
+                        copyEntry(entry, target, attributes, result);
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    fail(entry, e, result);
+                }
+            }
+            invokeAll(directories);
+        }
+    }
+
+    /**
+     * 拷贝一个文件或符号链接，其他类型（设备文件、管道等）忽略
+     */
+    private void copyEntry(Path source, Path target, BasicFileAttributes attributes, Result result) throws IOException {
+        if (attributes.isSymbolicLink()) {
+            Files.deleteIfExists(target);
+            Files.createSymbolicLink(target, Files.readSymbolicLink(source));
+            result.files.increment();
+            return;
+        }
+        if (!attributes.isRegularFile()) {
+            return;
+        }
+        long size = attributes.size();
+        if (size <= smallFileThreshold) {
+            copySmallFile(source, target);
+        } else {
+            largeFileRunner.copyFile(source.toFile(), target.toFile());
+            // FileCopyRunner 只打印异常，通过文件长度判断是否成功
+            if (Files.size(target) != size) {
+                throw new IOException("拷贝不完整：" + target);
+            }
+        }
+        if (preserveAttributes) {
+            copyAttributes(target, attributes);
+        }
+        result.files.increment();
+        result.bytes.add(size);
+    }
+
+    private void copySmallFile(Path source, Path target) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel fin = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel fout = FileChannel.open(target, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.clear();
+            while (fin.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    fout.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * 需要保留属性时一并读出 POSIX 权限，避免再调用一次 stat
+     */
+    private BasicFileAttributes readAttributes(Path path) throws IOException {
+        if (preserveAttributes && posix) {
+            return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * 解析符号链接后的绝对路径，path 不存在时解析其最近的已存在的上级目录
+     */
+    private static Path realPath(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        Path existing = absolute;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return existing == null ? absolute : existing.toRealPath().resolve(existing.relativize(absolute));
+    }
+
+    private static void copyAttributes(Path target, BasicFileAttributes attributes) throws IOException {
+        if (attributes.isSymbolicLink()) {
+            return;
+        }
+        if (attributes instanceof PosixFileAttributes) {
+            Files.getFileAttributeView(target, PosixFileAttributeView.class)
+                    .setPermissions(((PosixFileAttributes) attributes).permissions());
+        }
+        Files.getFileAttributeView(target, BasicFileAttributeView.class)
+                .setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+    }
+
+    private static void fail(Path path, Exception e, Result result) {
+        result.failures.increment();
+        System.out.println("拷贝失败：" + path + "：" + e);
+    }
+
+    /**
+     * 一次拷贝的统计，任务并行更新
+     */
+    public static class Result {
+        final LongAdder files = new LongAdder();
+        final LongAdder directories = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        long nanos;
+
+        public long files() {
+            return files.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long failures() {
+            return failures.sum();
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("目录：%d，文件：%d，字节：%d，失败：%d，耗时：%dms，%.0f 文件/秒，%.1f MB/s",
+                    directories.sum(), files(), bytes(), failures(), TimeUnit.NANOSECONDS.toMillis(nanos),
+                    files() / seconds, bytes() / seconds / (1024 * 1024));
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("参数：源目录 目标目录 [并行线程数] [preserve]");
+            return;
+        }
+        // 参数3：并行线程数，默认为 CPU 核数的 2 倍（等待 I/O 时线程不占用 CPU）；参数4：preserve 表示保留时间与权限
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+        boolean preserveAttributes = args.length > 3 && "preserve".equals(args[3]);
+        TreeCopier copier = new TreeCopier(parallelism, preserveAttributes);
+        System.out.println(copier.copyTree(new File(args[0]).toPath(), new File(args[1]).toPath()));
+    }
+}